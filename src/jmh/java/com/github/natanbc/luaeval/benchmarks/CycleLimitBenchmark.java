@@ -0,0 +1,43 @@
+package com.github.natanbc.luaeval.benchmarks;
+
+import com.github.natanbc.luaeval.CycleLimiter;
+import com.github.natanbc.luaeval.LuaEvaluator;
+import com.github.natanbc.luaeval.LuaEvaluatorBuilder;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CycleLimitBenchmark {
+    private static final String CODE = "local s = 0 for i = 1, 100000 do s = s + i % 7 end return s";
+
+    @Param({"NONE", "PRECISE", "FAST"})
+    public String mode;
+
+    private LuaEvaluator evaluator;
+    private Prototype chunk;
+
+    @Setup
+    public void setup() {
+        LuaEvaluatorBuilder builder = LuaEvaluator.builder();
+        if(!mode.equals("NONE")) {
+            builder.setCycleLimit(Long.MAX_VALUE / 2)
+                    .setCycleLimitMode(CycleLimiter.Mode.valueOf(mode))
+                    .setRefillCyclesOnEval(true);
+        }
+        evaluator = builder.build();
+        chunk = evaluator.compile(CODE, "loop");
+    }
+
+    @Benchmark
+    public LuaValue loop() {
+        return evaluator.eval(chunk, "loop");
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.natanbc.luaeval.benchmarks;
+
+import com.github.natanbc.luaeval.scriptengine.Factory;
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+//one thread isolated engine shared by every benchmark thread, throughput should grow with the thread count
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineThreadingBenchmark {
+    private static final String CODE = "local s = 0 for i = 1, 1000 do s = s + i % 7 end return s";
+
+    private ScriptEngine engine;
+    private CompiledScript script;
+
+    @Setup
+    public void setup() throws ScriptException {
+        engine = new Factory(true).getScriptEngine();
+        script = ((Compilable)engine).compile(CODE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object threads1() throws ScriptException {
+        return script.eval();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object threads4() throws ScriptException {
+        return script.eval();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object threads16() throws ScriptException {
+        return script.eval();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Object threads32() throws ScriptException {
+        return script.eval();
+    }
+}
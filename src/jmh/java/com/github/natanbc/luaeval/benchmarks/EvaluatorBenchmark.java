@@ -0,0 +1,72 @@
+package com.github.natanbc.luaeval.benchmarks;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+    static final String SMALL = "return 1 + 2";
+    static final String LARGE;
+
+    static {
+        //no locals per function, lua limits a function to 200 of them
+        StringBuilder sb = new StringBuilder("local f, t = {}, {}\n");
+        for(int i = 0; i < 500; i++) {
+            sb.append("f[").append(i + 1).append("] = function(a, b) if a > b then return a - b else return b - a + ").append(i).append(" end end\n");
+            sb.append("t[").append(i + 1).append("] = f[").append(i + 1).append("](").append(i).append(", 250)\n");
+        }
+        LARGE = sb.append("return #t").toString();
+    }
+
+    private LuaEvaluator evaluator;
+    private Prototype small;
+    private Prototype large;
+
+    @Setup
+    public void setup() {
+        evaluator = new LuaEvaluator();
+        //compilation is measured separately
+        evaluator.setChunkCache(null);
+        small = evaluator.compile(SMALL, "small");
+        large = evaluator.compile(LARGE, "large");
+    }
+
+    @Benchmark
+    public LuaEvaluator createLazy() {
+        return LuaEvaluator.builder().build();
+    }
+
+    @Benchmark
+    public LuaEvaluator createEager() {
+        return LuaEvaluator.builder().setLazyLibraries(false).build();
+    }
+
+    @Benchmark
+    public Prototype compileSmall() {
+        return evaluator.compile(SMALL, "small");
+    }
+
+    @Benchmark
+    public Prototype compileLarge() {
+        return evaluator.compile(LARGE, "large");
+    }
+
+    @Benchmark
+    public LuaValue evalSmall() {
+        return evaluator.eval(small, "small");
+    }
+
+    @Benchmark
+    public LuaValue evalLarge() {
+        return evaluator.eval(large, "large");
+    }
+}
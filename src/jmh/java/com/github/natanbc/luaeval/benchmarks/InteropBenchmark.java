@@ -0,0 +1,139 @@
+package com.github.natanbc.luaeval.benchmarks;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import com.github.natanbc.luaeval.utils.LuaHelper;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//lua side benchmarks loop inside the script, so the cost of eval itself is amortized
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InteropBenchmark {
+    private static final int LOOP = 1000;
+
+    @Param({"true", "false"})
+    public boolean generatedInterfaces;
+
+    private LuaEvaluator evaluator;
+    private Target target;
+    private Callback callback;
+    private Prototype overloaded;
+    private Prototype varargs;
+    private Prototype primitives;
+    private Prototype fieldGet;
+    private Prototype fieldSet;
+    private Prototype arrayGet;
+    private Prototype arraySet;
+
+    @Setup
+    public void setup() {
+        evaluator = LuaEvaluator.builder().setGeneratedInterfaces(generatedInterfaces).build();
+        target = new Target();
+        evaluator.set("target", target);
+        evaluator.set("array", new int[LOOP]);
+        overloaded = loop("target.add(i, i)");
+        varargs = loop("target.sum(i, i, i, i)");
+        primitives = loop("target.mix(i, i * 2, i + 0.5, true)");
+        fieldGet = loop("local x = target.value");
+        fieldSet = loop("target.value = i");
+        arrayGet = loop("local x = array[i]");
+        arraySet = loop("array[i] = i");
+        LuaTable impl = new LuaTable();
+        impl.set("apply", evaluator.load("return function(a, b, s) return a + b + #s end", "callback").call());
+        callback = LuaHelper.implement(evaluator, Callback.class, impl);
+    }
+
+    private Prototype loop(String body) {
+        return evaluator.compile("for i = 1, " + LOOP + " do " + body + " end", "loop");
+    }
+
+    @Benchmark
+    public LuaValue wrap() {
+        return evaluator.toLua(target);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP)
+    public LuaValue callOverloaded() {
+        return evaluator.eval(overloaded, "loop");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP)
+    public LuaValue callVarargs() {
+        return evaluator.eval(varargs, "loop");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP)
+    public LuaValue callPrimitives() {
+        return evaluator.eval(primitives, "loop");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP)
+    public LuaValue fieldGet() {
+        return evaluator.eval(fieldGet, "loop");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP)
+    public LuaValue fieldSet() {
+        return evaluator.eval(fieldSet, "loop");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP)
+    public LuaValue arrayGet() {
+        return evaluator.eval(arrayGet, "loop");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP)
+    public LuaValue arraySet() {
+        return evaluator.eval(arraySet, "loop");
+    }
+
+    @Benchmark
+    public int interfaceCallback() {
+        return callback.apply(1, 2, "abc");
+    }
+
+    public interface Callback {
+        int apply(int a, int b, String s);
+    }
+
+    public static class Target {
+        public int value;
+
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        public double add(double a, double b) {
+            return a + b;
+        }
+
+        public String add(String a, String b) {
+            return a + b;
+        }
+
+        public int sum(int... values) {
+            int sum = 0;
+            for(int v : values) sum += v;
+            return sum;
+        }
+
+        public double mix(int a, long b, double c, boolean d) {
+            return d ? a + b + c : c;
+        }
+    }
+}
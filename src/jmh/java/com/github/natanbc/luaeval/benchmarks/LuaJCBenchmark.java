@@ -0,0 +1,38 @@
+package com.github.natanbc.luaeval.benchmarks;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LuaJCBenchmark {
+    private static final String CODE = "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+            "local s = 0 for i = 1, 100000 do s = s + i % 7 end return s + fib(20)";
+
+    //-1 interprets, 0 compiles on the first load
+    @Param({"-1", "0"})
+    public int threshold;
+
+    private LuaEvaluator evaluator;
+    private Prototype chunk;
+
+    @Setup
+    public void setup() {
+        evaluator = LuaEvaluator.builder().setLuaJCThreshold(threshold).build();
+        if(threshold >= 0 && !evaluator.isLuaJC()) throw new IllegalStateException("bcel not on the classpath");
+        chunk = evaluator.compile(CODE, "numeric");
+    }
+
+    @Benchmark
+    public LuaValue numeric() {
+        return evaluator.eval(chunk, "numeric");
+    }
+}
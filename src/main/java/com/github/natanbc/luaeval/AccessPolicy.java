@@ -0,0 +1,188 @@
+package com.github.natanbc.luaeval;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Member;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//members can be blocked individually, classes by name and packages (with their subpackages) by prefix.
+//once anything is allowed the policy becomes an allowlist and every other class is blocked, block rules always win
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class AccessPolicy {
+    public static final AccessPolicy EMPTY = new AccessPolicy(Collections.emptySet(), Collections.emptySet(),
+            Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+
+    //implementations of interfaces created for scripts are judged by the interfaces they implement
+    private static final String GENERATED_PACKAGE = "com.github.natanbc.luaeval.utils.generated.";
+    private static final int BINDING_SLOTS = 4;
+
+    private final Set<AccessibleObject> blocked;
+    private final Set<String> blockedClasses;
+    private final Set<String> blockedPackages;
+    private final Set<String> allowedClasses;
+    private final Set<String> allowedPackages;
+    private final int hash;
+    private final ClassValue<Boolean> verdicts = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return computeBlocked(type);
+        }
+    };
+    //filled by the class bindings of the utils package, which live and die with the policy that shaped them
+    private final ClassValue<AtomicReferenceArray<Object>> bindings = new ClassValue<AtomicReferenceArray<Object>>() {
+        @Override
+        protected AtomicReferenceArray<Object> computeValue(Class<?> type) {
+            return new AtomicReferenceArray<>(BINDING_SLOTS);
+        }
+    };
+
+    private AccessPolicy(Set<AccessibleObject> blocked, Set<String> blockedClasses, Set<String> blockedPackages,
+                         Set<String> allowedClasses, Set<String> allowedPackages) {
+        this.blocked = blocked;
+        this.blockedClasses = blockedClasses;
+        this.blockedPackages = blockedPackages;
+        this.allowedClasses = allowedClasses;
+        this.allowedPackages = allowedPackages;
+        this.hash = Objects.hash(blocked, blockedClasses, blockedPackages, allowedClasses, allowedPackages);
+    }
+
+    public AccessPolicy block(AccessibleObject member) {
+        Objects.requireNonNull(member);
+        if(blocked.contains(member)) return this;
+        return new AccessPolicy(with(blocked, member), blockedClasses, blockedPackages, allowedClasses, allowedPackages);
+    }
+
+    public AccessPolicy blockClass(Class<?> type) {
+        return blockClass(type.getName());
+    }
+
+    public AccessPolicy blockClass(String name) {
+        Objects.requireNonNull(name);
+        if(blockedClasses.contains(name)) return this;
+        return new AccessPolicy(blocked, with(blockedClasses, name), blockedPackages, allowedClasses, allowedPackages);
+    }
+
+    public AccessPolicy blockPackage(String name) {
+        Objects.requireNonNull(name);
+        if(blockedPackages.contains(name)) return this;
+        return new AccessPolicy(blocked, blockedClasses, with(blockedPackages, name), allowedClasses, allowedPackages);
+    }
+
+    public AccessPolicy allowClass(Class<?> type) {
+        return allowClass(type.getName());
+    }
+
+    public AccessPolicy allowClass(String name) {
+        Objects.requireNonNull(name);
+        if(allowedClasses.contains(name)) return this;
+        return new AccessPolicy(blocked, blockedClasses, blockedPackages, with(allowedClasses, name), allowedPackages);
+    }
+
+    public AccessPolicy allowPackage(String name) {
+        Objects.requireNonNull(name);
+        if(allowedPackages.contains(name)) return this;
+        return new AccessPolicy(blocked, blockedClasses, blockedPackages, allowedClasses, with(allowedPackages, name));
+    }
+
+    public boolean isBlocked(AccessibleObject member) {
+        if(blocked.contains(member)) return true;
+        //allow rules only restrict which objects can be used, not which members they inherit (eg from Object)
+        if(blockedClasses.isEmpty() && blockedPackages.isEmpty()) return false;
+        Class<?> declaring = ((Member)member).getDeclaringClass();
+        return isBlockedByRules(declaring.getName(), packageOf(declaring));
+    }
+
+    public boolean isBlocked(Class<?> type) {
+        return verdicts.get(type);
+    }
+
+    public boolean isAllowlist() {
+        return !allowedClasses.isEmpty() || !allowedPackages.isEmpty();
+    }
+
+    //internal, used by com.github.natanbc.luaeval.utils
+    public AtomicReferenceArray<Object> getBindingSlots(Class<?> type) {
+        return bindings.get(type);
+    }
+
+    public Set<AccessibleObject> getBlockedMembers() {
+        return blocked;
+    }
+
+    public Set<String> getBlockedClasses() {
+        return blockedClasses;
+    }
+
+    public Set<String> getBlockedPackages() {
+        return blockedPackages;
+    }
+
+    public Set<String> getAllowedClasses() {
+        return allowedClasses;
+    }
+
+    public Set<String> getAllowedPackages() {
+        return allowedPackages;
+    }
+
+    private boolean computeBlocked(Class<?> type) {
+        while(type.isArray()) type = type.getComponentType();
+        if(type.isPrimitive()) return false;
+        if(Proxy.isProxyClass(type) || type.getName().startsWith(GENERATED_PACKAGE)) {
+            for(Class<?> i : type.getInterfaces()) {
+                if(isBlocked(i)) return true;
+            }
+            return false;
+        }
+        String name = type.getName();
+        String pkg = packageOf(type);
+        if(isBlockedByRules(name, pkg)) return true;
+        return isAllowlist() && !allowedClasses.contains(name) && !matches(allowedPackages, pkg);
+    }
+
+    private boolean isBlockedByRules(String name, String pkg) {
+        return blockedClasses.contains(name) || matches(blockedPackages, pkg);
+    }
+
+    //a package rule also covers its subpackages
+    private static boolean matches(Set<String> packages, String pkg) {
+        if(packages.isEmpty()) return false;
+        while(true) {
+            if(packages.contains(pkg)) return true;
+            int idx = pkg.lastIndexOf('.');
+            if(idx == -1) return false;
+            pkg = pkg.substring(0, idx);
+        }
+    }
+
+    private static String packageOf(Class<?> type) {
+        String name = type.getName();
+        int idx = name.lastIndexOf('.');
+        return idx == -1 ? "" : name.substring(0, idx);
+    }
+
+    private static <T> Set<T> with(Set<T> set, T value) {
+        Set<T> copy = new HashSet<>(set);
+        copy.add(value);
+        return Collections.unmodifiableSet(copy);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(obj == this) return true;
+        if(!(obj instanceof AccessPolicy)) return false;
+        AccessPolicy p = (AccessPolicy)obj;
+        return hash == p.hash && blocked.equals(p.blocked) && blockedClasses.equals(p.blockedClasses) &&
+                blockedPackages.equals(p.blockedPackages) && allowedClasses.equals(p.allowedClasses) &&
+                allowedPackages.equals(p.allowedPackages);
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.natanbc.luaeval;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//default executor of LuaEvaluator.evalAsync, created on first use
+class AsyncExecutor {
+    static final Executor DEFAULT = create();
+
+    //virtual threads when the runtime has them, evaluations often block on java calls. looked up reflectively
+    //because we target java 8
+    private static Executor create() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        } catch(ReflectiveOperationException | RuntimeException ignored) {
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r->{
+            Thread t = new Thread(r, "luaeval-async-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
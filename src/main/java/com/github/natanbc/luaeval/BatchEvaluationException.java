@@ -0,0 +1,15 @@
+package com.github.natanbc.luaeval;
+
+@SuppressWarnings("unused")
+public class BatchEvaluationException extends RuntimeException {
+    private final int index;
+
+    BatchEvaluationException(int index, Throwable cause) {
+        super("Record " + index + " failed: " + cause.getMessage(), cause);
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+}
@@ -0,0 +1,220 @@
+package com.github.natanbc.luaeval;
+
+import org.luaj.vm2.LuaBoolean;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+//evaluates one compiled chunk once per record. every worker keeps a single evaluator and loaded chunk for all of its
+//records, only the bound globals change between them. anything else a script changes, like globals it sets itself,
+//is seen by the next records of the same worker, so scripts that must not depend on each other shouldn't do that
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class BatchEvaluator {
+    private final Prototype prototype;
+    private final String chunkName;
+    private final Supplier<LuaEvaluator> evaluators;
+    private volatile int workers = 1;
+    private volatile Executor executor = AsyncExecutor.DEFAULT;
+
+    public BatchEvaluator(Prototype prototype, String chunkName, Supplier<LuaEvaluator> evaluators) {
+        this.prototype = Objects.requireNonNull(prototype, "prototype");
+        this.chunkName = Objects.requireNonNull(chunkName, "chunkName");
+        this.evaluators = Objects.requireNonNull(evaluators, "evaluators");
+    }
+
+    public BatchEvaluator(Prototype prototype, String chunkName) {
+        this(prototype, chunkName, ()->LuaEvaluator.builder().build());
+    }
+
+    //records are split in contiguous ranges, one per worker. the calling thread works on the first one
+    public BatchEvaluator setWorkers(int workers) {
+        if(workers < 1) throw new IllegalArgumentException("workers < 1");
+        this.workers = workers;
+        return this;
+    }
+
+    public BatchEvaluator setExecutor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor, "executor");
+        return this;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public LuaValue[] evaluate(List<? extends Map<String, ?>> records) {
+        return evaluate(records, new LuaValue[records.size()]);
+    }
+
+    public LuaValue[] evaluate(List<? extends Map<String, ?>> records, LuaValue[] results) {
+        if(results.length < records.size()) throw new IllegalArgumentException("results.length < records.size()");
+        split(records.size(), (worker, index)->results[index] = worker.evaluate(records.get(index)));
+        return results;
+    }
+
+    //columnar records, values[column][row] is bound to the global named columns[column]
+    public LuaValue[] evaluate(String[] columns, Object[][] values, LuaValue[] results) {
+        if(columns.length != values.length) throw new IllegalArgumentException("columns.length != values.length");
+        int rows = values.length == 0 ? 0 : values[0].length;
+        for(Object[] column : values) {
+            if(column.length != rows) throw new IllegalArgumentException("Columns have different lengths");
+        }
+        if(results.length < rows) throw new IllegalArgumentException("results.length < rows");
+        LuaString[] keys = new LuaString[columns.length];
+        for(int i = 0; i < keys.length; i++) {
+            keys[i] = LuaString.valueOf(columns[i]);
+        }
+        split(rows, (worker, index)->results[index] = worker.evaluate(keys, values, index));
+        return results;
+    }
+
+    //lazily evaluates records in order on the consuming thread, using a single evaluator
+    public Stream<LuaValue> stream(Iterable<? extends Map<String, ?>> records) {
+        Iterator<? extends Map<String, ?>> it = records.iterator();
+        Worker worker = new Worker(evaluators.get());
+        Iterator<LuaValue> results = new Iterator<LuaValue>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public LuaValue next() {
+                int i = index++;
+                try {
+                    return worker.evaluate(it.next());
+                } catch(RuntimeException e) {
+                    throw new BatchEvaluationException(i, e);
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private void split(int size, Task task) {
+        int n = Math.min(workers, size);
+        if(n == 0) return;
+        AtomicReference<BatchEvaluationException> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(n - 1);
+        List<Runnable> ranges = new ArrayList<>(n);
+        for(int i = 0; i < n; i++) {
+            int from = (int)((long)size * i / n);
+            int to = (int)((long)size * (i + 1) / n);
+            ranges.add(()->{
+                try {
+                    Worker worker = new Worker(evaluators.get());
+                    for(int j = from; j < to && failure.get() == null; j++) {
+                        try {
+                            task.run(worker, j);
+                        } catch(Throwable e) {
+                            //errors too, a worker stopping silently would leave its results null
+                            failure.compareAndSet(null, new BatchEvaluationException(j, e));
+                        }
+                    }
+                } catch(Throwable e) {
+                    //creating the evaluator failed
+                    failure.compareAndSet(null, new BatchEvaluationException(from, e));
+                }
+            });
+        }
+        for(int i = 1; i < n; i++) {
+            Runnable range = ranges.get(i);
+            int from = (int)((long)size * i / n);
+            try {
+                executor.execute(()->{
+                    try {
+                        range.run();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            } catch(RuntimeException e) {
+                //eg a rejected task, which would never count down
+                failure.compareAndSet(null, new BatchEvaluationException(from, e));
+                done.countDown();
+            }
+        }
+        ranges.get(0).run();
+        try {
+            done.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            //makes the other workers stop at their next record
+            failure.compareAndSet(null, new BatchEvaluationException(-1, e));
+        }
+        BatchEvaluationException e = failure.get();
+        if(e != null) throw e;
+    }
+
+    private interface Task {
+        void run(Worker worker, int index);
+    }
+
+    private class Worker {
+        private final LuaEvaluator evaluator;
+        private final LuaValue chunk;
+        private final Map<String, LuaString> keys = new HashMap<>();
+        private Set<LuaString> bound = new HashSet<>();
+        private Set<LuaString> previous = new HashSet<>();
+
+        Worker(LuaEvaluator evaluator) {
+            this.evaluator = evaluator;
+            this.chunk = evaluator.load(prototype, chunkName);
+        }
+
+        LuaValue evaluate(Map<String, ?> record) {
+            for(Map.Entry<String, ?> e : record.entrySet()) {
+                LuaString key = keys.computeIfAbsent(e.getKey(), LuaString::valueOf);
+                evaluator.getGlobals().rawset(key, toLua(e.getValue()));
+                bound.add(key);
+            }
+            //globals bound by the previous record but missing from this one must not leak into it
+            for(LuaString key : previous) {
+                if(!bound.contains(key)) evaluator.getGlobals().rawset(key, LuaValue.NIL);
+            }
+            Set<LuaString> tmp = previous;
+            previous = bound;
+            bound = tmp;
+            bound.clear();
+            return evaluator.call(chunk, chunkName);
+        }
+
+        LuaValue evaluate(LuaString[] keys, Object[][] values, int row) {
+            for(int i = 0; i < keys.length; i++) {
+                evaluator.getGlobals().rawset(keys[i], toLua(values[i][row]));
+            }
+            return evaluator.call(chunk, chunkName);
+        }
+
+        //the common record value types skip the generic coercion lookup
+        private LuaValue toLua(Object value) {
+            if(value instanceof LuaValue) return (LuaValue)value;
+            if(value instanceof String) return LuaString.valueOf((String)value);
+            if(value instanceof Integer) return LuaInteger.valueOf((Integer)value);
+            if(value instanceof Double) return LuaValue.valueOf((Double)value);
+            if(value instanceof Long) return LuaInteger.valueOf((Long)value);
+            if(value instanceof Boolean) return LuaBoolean.valueOf((Boolean)value);
+            return evaluator.toLua(value);
+        }
+    }
+}
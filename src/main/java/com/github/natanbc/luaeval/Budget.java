@@ -0,0 +1,46 @@
+package com.github.natanbc.luaeval;
+
+import java.util.concurrent.TimeUnit;
+
+//limits for a single evaluation, applied on top of the limits of the evaluator (the smaller one wins)
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class Budget {
+    public static final Budget UNLIMITED = new Budget(-1, -1);
+
+    private final long cycleLimit;
+    private final long timeLimit;
+
+    private Budget(long cycleLimit, long timeLimit) {
+        this.cycleLimit = cycleLimit;
+        this.timeLimit = timeLimit;
+    }
+
+    public static Budget cycles(long cycleLimit) {
+        return UNLIMITED.withCycleLimit(cycleLimit);
+    }
+
+    public static Budget time(long time, TimeUnit unit) {
+        return UNLIMITED.withTimeLimit(time, unit);
+    }
+
+    public Budget withCycleLimit(long cycleLimit) {
+        return new Budget(cycleLimit > 0 ? cycleLimit : -1, timeLimit);
+    }
+
+    public Budget withTimeLimit(long time, TimeUnit unit) {
+        long nanos = unit.toNanos(time);
+        return new Budget(cycleLimit, nanos > 0 ? nanos : -1);
+    }
+
+    public long getCycleLimit() {
+        return cycleLimit;
+    }
+
+    public long getTimeLimit(TimeUnit unit) {
+        return timeLimit <= 0 ? -1 : unit.convert(timeLimit, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isUnlimited() {
+        return cycleLimit <= 0 && timeLimit <= 0;
+    }
+}
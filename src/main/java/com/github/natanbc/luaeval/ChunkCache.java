@@ -0,0 +1,206 @@
+package com.github.natanbc.luaeval;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.LuaC;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ChunkCache {
+    private static final ChunkCache DEFAULT = new ChunkCache(512, 16 * 1024 * 1024);
+
+    private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final int maxSize;
+    private final long maxWeight;
+    private long weight;
+
+    public ChunkCache(int maxSize, long maxWeight) {
+        if(maxSize < 1) throw new IllegalArgumentException("maxSize < 1");
+        if(maxWeight < 1) throw new IllegalArgumentException("maxWeight < 1");
+        this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
+    }
+
+    public ChunkCache(int maxSize) {
+        this(maxSize, Long.MAX_VALUE);
+    }
+
+    public static ChunkCache getDefault() {
+        return DEFAULT;
+    }
+
+    public Prototype get(Globals globals, String code, String chunkName) {
+        return get(globals, code, chunkName, MetricsRecorder.NONE);
+    }
+
+    public Prototype get(Globals globals, String code, String chunkName, MetricsRecorder metrics) {
+        return get(globals, code, chunkName, metrics, null);
+    }
+
+    //misses are looked up in the store before compiling
+    public Prototype get(Globals globals, String code, String chunkName, MetricsRecorder metrics, ChunkStore store) {
+        Key key = new Key(code, chunkName);
+        synchronized(map) {
+            Entry e = map.get(key);
+            if(e != null) {
+                hits.incrementAndGet();
+                return e.prototype;
+            }
+        }
+        misses.incrementAndGet();
+        Prototype p = store == null ? compile(globals, code, chunkName, metrics) : store.get(globals, code, chunkName, metrics);
+        synchronized(map) {
+            Entry old = map.putIfAbsent(key, new Entry(p, key.weight()));
+            if(old != null) return old.prototype;
+            weight += key.weight();
+            evict();
+        }
+        return p;
+    }
+
+    public Prototype get(String code, String chunkName) {
+        return get(null, code, chunkName);
+    }
+
+    public void invalidate(String code, String chunkName) {
+        Key key = new Key(code, chunkName);
+        synchronized(map) {
+            //the weight of the inserted key, which may differ from this one if the strings were the same instance
+            Entry e = map.remove(key);
+            if(e != null) weight -= e.weight;
+        }
+    }
+
+    public void clear() {
+        synchronized(map) {
+            map.clear();
+            weight = 0;
+        }
+    }
+
+    public int size() {
+        synchronized(map) {
+            return map.size();
+        }
+    }
+
+    public long weight() {
+        synchronized(map) {
+            return weight;
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double)h / total;
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    private void evict() {
+        Iterator<Entry> it = map.values().iterator();
+        //always keep the most recently inserted entry, even if it alone exceeds the max weight
+        while((map.size() > maxSize || weight > maxWeight) && map.size() > 1) {
+            Entry e = it.next();
+            it.remove();
+            weight -= e.weight;
+            evictions.incrementAndGet();
+        }
+    }
+
+    static Prototype compile(Globals globals, String code, String chunkName, MetricsRecorder metrics) {
+        if(metrics == MetricsRecorder.NONE) return compile(globals, code, chunkName);
+        long start = System.nanoTime();
+        Prototype p = compile(globals, code, chunkName);
+        metrics.onCompile(chunkName, System.nanoTime() - start);
+        return p;
+    }
+
+    static Prototype compile(Globals globals, String code, String chunkName) {
+        try {
+            if(globals == null) {
+                return LuaC.instance.compile(new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), chunkName);
+            }
+            return globals.compilePrototype(new StringReader(code), chunkName);
+        } catch(LuaError e) {
+            throw e;
+        } catch(Exception e) {
+            throw new LuaError("load " + chunkName + ": " + e);
+        }
+    }
+
+    private static class Entry {
+        private final Prototype prototype;
+        private final long weight;
+
+        Entry(Prototype prototype, long weight) {
+            this.prototype = prototype;
+            this.weight = weight;
+        }
+    }
+
+    private static class Key {
+        private final String code;
+        private final String chunkName;
+        private final int hash;
+
+        Key(String code, String chunkName) {
+            this.code = Objects.requireNonNull(code, "code");
+            this.chunkName = Objects.requireNonNull(chunkName, "chunkName");
+            this.hash = 31 * code.hashCode() + chunkName.hashCode();
+        }
+
+        long weight() {
+            //when the chunk name is the code itself (the default for eval(String)) it's the same string instance
+            return code == chunkName ? code.length() : (long)code.length() + chunkName.length();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) return false;
+            Key k = (Key)obj;
+            return hash == k.hash && code.equals(k.code) && chunkName.equals(k.chunkName);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.github.natanbc.luaeval;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.DumpState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+//keeps compiled chunks on disk in luaj's binary chunk format, so restarts don't parse scripts again.
+//files are named after the hash of the chunk name and code, and carry the hash of the store format and luaj version.
+//files written by another version, for another source or damaged in any way are replaced by a fresh compilation
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ChunkStore {
+    private static final int MAGIC = 0x4c455643; //LEVC
+    private static final int FORMAT = 1;
+    private static final String EXTENSION = ".luac";
+    //magic, version hash, source hash, payload length, payload crc
+    private static final int HEADER_SIZE = 4 + 32 + 32 + 4 + 8;
+    private static final byte[] VERSION = sha256(FORMAT + "\0" + Lua._VERSION + "\0" + LoadState.LUAC_VERSION);
+
+    private final Path directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ChunkStore(Path directory) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        try {
+            Files.createDirectories(directory);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public Prototype get(String code, String chunkName) {
+        return get(null, code, chunkName, MetricsRecorder.NONE);
+    }
+
+    public Prototype get(Globals globals, String code, String chunkName, MetricsRecorder metrics) {
+        byte[] source = sourceHash(code, chunkName);
+        Path file = file(source);
+        Prototype p = read(file, source, chunkName);
+        if(p != null) {
+            hits.incrementAndGet();
+            return p;
+        }
+        misses.incrementAndGet();
+        p = ChunkCache.compile(globals, code, chunkName, metrics);
+        write(file, source, p);
+        return p;
+    }
+
+    public void invalidate(String code, String chunkName) {
+        delete(file(sourceHash(code, chunkName)));
+    }
+
+    public void clear() {
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for(Path file : files) delete(file);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    //files found but not usable, counted in the misses too
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        invalidations.set(0);
+    }
+
+    private Path file(byte[] source) {
+        StringBuilder sb = new StringBuilder(source.length * 2 + EXTENSION.length());
+        for(byte b : source) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(sb.append(EXTENSION).toString());
+    }
+
+    private Prototype read(Path file, byte[] source, String chunkName) {
+        //plain reads, chunks are small and mapping every one of them would keep the files mapped until gc
+        //(which also stops them from being deleted on windows)
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        } catch(NoSuchFileException e) {
+            return null;
+        } catch(IOException e) {
+            invalid(file);
+            return null;
+        }
+        if(buffer.remaining() < HEADER_SIZE) {
+            invalid(file);
+            return null;
+        }
+        if(buffer.getInt() != MAGIC || !matches(buffer, VERSION) || !matches(buffer, source)) {
+            invalid(file);
+            return null;
+        }
+        int length = buffer.getInt();
+        long crc = buffer.getLong();
+        if(length != buffer.remaining()) {
+            invalid(file);
+            return null;
+        }
+        CRC32 check = new CRC32();
+        check.update(buffer.duplicate());
+        if(check.getValue() != crc) {
+            invalid(file);
+            return null;
+        }
+        try {
+            Prototype p = LoadState.undump(new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()), chunkName);
+            if(p == null) invalid(file);
+            return p;
+        } catch(IOException | LuaError | IndexOutOfBoundsException e) {
+            invalid(file);
+            return null;
+        }
+    }
+
+    //the store is only a cache, scripts still run if it can't be written
+    private void write(Path file, byte[] source, Prototype p) {
+        Path tmp = null;
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DumpState.dump(p, payload, false);
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            tmp = Files.createTempFile(directory, "chunk", ".tmp");
+            try(OutputStream os = Files.newOutputStream(tmp); DataOutputStream out = new DataOutputStream(os)) {
+                out.writeInt(MAGIC);
+                out.write(VERSION);
+                out.write(source);
+                out.writeInt(bytes.length);
+                out.writeLong(crc.getValue());
+                out.write(bytes);
+            }
+            //readers only ever see complete files
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+        } catch(IOException ignored) {
+        } finally {
+            if(tmp != null) delete(tmp);
+        }
+    }
+
+    private void invalid(Path file) {
+        invalidations.incrementAndGet();
+        delete(file);
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch(IOException ignored) {
+            //eg files open elsewhere on windows, it gets replaced on the next write instead
+        }
+    }
+
+    private static boolean matches(ByteBuffer buffer, byte[] expected) {
+        byte[] actual = new byte[expected.length];
+        buffer.get(actual);
+        return Arrays.equals(actual, expected);
+    }
+
+    private static byte[] sourceHash(String code, String chunkName) {
+        Objects.requireNonNull(code, "code");
+        Objects.requireNonNull(chunkName, "chunkName");
+        //the chunk name ends up in the compiled chunk as its source
+        return sha256(chunkName.length() + ":" + chunkName + code);
+    }
+
+    private static byte[] sha256(String s) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch(NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
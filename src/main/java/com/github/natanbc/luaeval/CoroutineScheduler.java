@@ -0,0 +1,212 @@
+package com.github.natanbc.luaeval;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//runs scripts as coroutines on a few carrier threads. a script is preempted once it runs for a slice of instructions,
+//so busy scripts can't starve the others, and scripts waiting in a top level coroutine.yield use no carrier at all.
+//
+//tasks sharing an evaluator run one at a time, as the running coroutine is tracked per evaluator. luaj backs every
+//coroutine with a java thread, parked while it isn't running, so only the number of scripts running at once is
+//bounded by the carriers.
+//
+//each task gets the evaluator's time, cpu time and memory limits from its first slice on, time spent waiting included,
+//and cancelling a task stops it mid slice. with setRefillCyclesOnEval every task gets the whole instruction budget,
+//otherwise they share it like consecutive evals do.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CoroutineScheduler implements AutoCloseable {
+    public static final long DEFAULT_SLICE = 10000;
+    public static final int MAX_WEIGHT = 1024;
+
+    private static final long STRIDE = 1L << 20;
+    private static final LuaValue PREEMPTED = LuaValue.userdataOf(new Object());
+    private static final Comparator<ScriptTask> ORDER = Comparator.<ScriptTask>comparingLong(t->t.pass).thenComparingLong(t->t.id);
+
+    private final PriorityBlockingQueue<ScriptTask> ready = new PriorityBlockingQueue<>(64, ORDER);
+    private final Set<ScriptTask> tasks = ConcurrentHashMap.newKeySet();
+    private final Map<LuaEvaluator, List<ScriptTask>> running = new IdentityHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final Thread[] carriers;
+    private final long slice;
+    //pass of the last dispatched task, new and woken tasks start from it instead of catching up on the time they weren't ready
+    private volatile long virtualTime;
+    private volatile boolean closed;
+
+    public CoroutineScheduler(int carriers, long slice) {
+        if(carriers < 1) throw new IllegalArgumentException("carriers < 1");
+        if(slice < 1) throw new IllegalArgumentException("slice < 1");
+        this.slice = slice;
+        this.carriers = new Thread[carriers];
+        for(int i = 0; i < carriers; i++) {
+            Thread t = new Thread(this::carrier, "luaeval-scheduler-" + i);
+            t.setDaemon(true);
+            this.carriers[i] = t;
+            t.start();
+        }
+    }
+
+    public CoroutineScheduler(int carriers) {
+        this(carriers, DEFAULT_SLICE);
+    }
+
+    public ScriptTask submit(LuaEvaluator evaluator, Prototype p, String chunkName) {
+        return submit(evaluator, p, chunkName, 1);
+    }
+
+    public ScriptTask submit(LuaEvaluator evaluator, Prototype p, String chunkName, int weight) {
+        return submit(evaluator, evaluator.load(p, chunkName), chunkName, weight);
+    }
+
+    //a task with weight 2 gets twice as many slices as one with weight 1 while both are ready
+    public ScriptTask submit(LuaEvaluator evaluator, LuaValue function, String chunkName, int weight) {
+        Objects.requireNonNull(evaluator, "evaluator");
+        function.checkfunction();
+        if(weight < 1 || weight > MAX_WEIGHT) throw new IllegalArgumentException("weight must be between 1 and " + MAX_WEIGHT);
+        if(evaluator.getCycleLimiter() == null) {
+            throw new IllegalArgumentException("Scheduled evaluators need a limit or setCancellable(true)");
+        }
+        if(closed) throw new IllegalStateException("Scheduler closed");
+        ScriptTask task = new ScriptTask(this, evaluator, function, chunkName, weight, ids.incrementAndGet());
+        tasks.add(task);
+        enqueue(task, true);
+        return task;
+    }
+
+    public long getSlice() {
+        return slice;
+    }
+
+    public int getCarriers() {
+        return carriers.length;
+    }
+
+    //tasks not finished yet, including the waiting ones
+    public int getTaskCount() {
+        return tasks.size();
+    }
+
+    public int getReadyCount() {
+        return ready.size();
+    }
+
+    //cancels every unfinished task and stops the carriers
+    @Override
+    public void close() {
+        closed = true;
+        for(ScriptTask task : tasks) task.cancel(false);
+        ready.clear();
+        for(Thread t : carriers) t.interrupt();
+    }
+
+    void enqueue(ScriptTask task, boolean catchUp) {
+        if(catchUp) task.pass = Math.max(task.pass, virtualTime);
+        ready.add(task);
+    }
+
+    void finished(ScriptTask task) {
+        if(task.done()) tasks.remove(task);
+    }
+
+    private void carrier() {
+        try {
+            while(!closed) {
+                ScriptTask task = ready.take();
+                if(task.isDone() || !acquire(task)) continue;
+                try {
+                    virtualTime = task.pass;
+                    runSlice(task);
+                } catch(Throwable t) {
+                    finished(task);
+                    task.completeExceptionally(t);
+                } finally {
+                    release(task.evaluator);
+                }
+            }
+        } catch(InterruptedException ignored) {
+        }
+    }
+
+    //tasks taken while another task of their evaluator runs wait for it to finish its slice
+    private boolean acquire(ScriptTask task) {
+        synchronized(running) {
+            List<ScriptTask> waiting = running.get(task.evaluator);
+            if(waiting != null) {
+                waiting.add(task);
+                return false;
+            }
+            running.put(task.evaluator, new ArrayList<>());
+            return true;
+        }
+    }
+
+    private void release(LuaEvaluator evaluator) {
+        List<ScriptTask> waiting;
+        synchronized(running) {
+            waiting = running.remove(evaluator);
+        }
+        for(ScriptTask task : waiting) {
+            enqueue(task, false);
+        }
+    }
+
+    private void runSlice(ScriptTask task) {
+        CycleLimiter limiter = task.evaluator.getCycleLimiter();
+        boolean refill = task.evaluator.isRefillCyclesOnEval();
+        Varargs args = task.start();
+        if(task.limits == null) {
+            //like eval, limits apply to the whole task, not to each slice
+            if(refill) limiter.reset();
+            limiter.start(Budget.UNLIMITED, task::isCancelled);
+        } else {
+            limiter.resume(task.limits);
+        }
+        long used = limiter.getInstructionsUsed();
+        long start = System.nanoTime();
+        Varargs result;
+        limiter.startSlice(task.thread, slice, PREEMPTED);
+        try {
+            result = task.thread.resume(args);
+        } finally {
+            limiter.stopSlice();
+            //other tasks of the evaluator may run before the next slice
+            task.limits = limiter.suspend(refill);
+        }
+        task.account(limiter.getInstructionsUsed() - used, System.nanoTime() - start);
+        task.pass += STRIDE / task.weight;
+        if(task.isDone()) {
+            //cancelled while running
+            finished(task);
+        } else if(task.thread.state.status == LuaThread.STATUS_DEAD) {
+            finished(task);
+            boolean failed = !result.arg1().toboolean();
+            task.evaluator.getMetrics().onEval(task.chunkName, task.getRunTime(TimeUnit.NANOSECONDS),
+                    task.getInstructions(), failed);
+            if(failed) {
+                Throwable failure = task.failure;
+                task.completeExceptionally(failure != null ? failure : new LuaError(result.arg(2).tojstring()));
+            } else {
+                task.complete(result.arg(2));
+            }
+        } else if(result.narg() == 2 && result.arg(2) == PREEMPTED) {
+            task.preempted();
+            ready.add(task);
+        } else if(task.yielded(result.subargs(2))) {
+            enqueue(task, true);
+        }
+    }
+}
@@ -2,13 +2,18 @@ package com.github.natanbc.luaeval;
 
 @SuppressWarnings("unused")
 public class CycleLimitExceededException extends RuntimeException {
-    private final int maxCycles;
+    private final long maxCycles;
 
-    CycleLimitExceededException(int max) {
+    CycleLimitExceededException(long max) {
+        super("Cycle limit of " + max + " exceeded");
         this.maxCycles = max;
     }
 
     public int getMaxCycles() {
+        return (int)Math.min(maxCycles, Integer.MAX_VALUE);
+    }
+
+    public long getCycleLimit() {
         return maxCycles;
     }
 }
@@ -1,19 +1,346 @@
 package com.github.natanbc.luaeval;
 
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.DebugLib;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
 public class CycleLimiter extends DebugLib {
-    private final int maxInstructions;
-    private int instructions = 0;
+    //reading clocks and allocation counters is much more expensive than counting, so they are only checked every few instructions
+    private static final int CHECK_INTERVAL = 1024;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final long maxInstructions;
+    private final long timeLimit;
+    private final long cpuTimeLimit;
+    private final long memoryLimit;
+    private final Mode mode;
+    private long remaining;
+    //limit reported when remaining runs out, the per call budget if it's the smaller one
+    private long activeCycleLimit;
+    private long savedRemaining = -1;
+    private long activeTimeLimit;
+    private BooleanSupplier cancelled;
+    private boolean checking;
+    private int untilCheck;
+    private long deadline;
+    //cpu time and allocations of the current evaluation, summed over every thread that ran its lua code. coroutines
+    //run on threads of their own, the counters last seen on each of them are kept to charge only what's new
+    private final Map<Thread, long[]> threadUsage = new WeakHashMap<>();
+    private Thread lastThread;
+    private long[] lastUsage;
+    private long cpuUsed;
+    private long memoryUsed;
+    private Globals globals;
+    //scheduler time slices, see CoroutineScheduler
+    private boolean slicing;
+    private long slice;
+    private long sliceLeft;
+    private LuaThread sliceThread;
+    private LuaValue preempted;
+
+    CycleLimiter(LuaEvaluatorBuilder builder) {
+        this.maxInstructions = builder.getCycleLimit() > 0 ? builder.getCycleLimit() : -1;
+        this.timeLimit = builder.getTimeLimit(TimeUnit.NANOSECONDS);
+        this.cpuTimeLimit = builder.getCpuTimeLimit(TimeUnit.NANOSECONDS);
+        this.memoryLimit = builder.getMemoryLimit();
+        this.mode = builder.getCycleLimitMode();
+        if(cpuTimeLimit > 0 && !THREADS.isCurrentThreadCpuTimeSupported()) {
+            throw new UnsupportedOperationException("Thread CPU time measurement is not supported by this JVM");
+        }
+        if(memoryLimit > 0 && !(THREADS instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean)THREADS).isThreadAllocatedMemorySupported())) {
+            throw new UnsupportedOperationException("Thread allocation measurement is not supported by this JVM");
+        }
+        this.activeCycleLimit = maxInstructions;
+        reset();
+    }
+
+    static boolean isNeeded(LuaEvaluatorBuilder builder) {
+        return builder.getCycleLimit() > 0 || builder.getTimeLimit(TimeUnit.NANOSECONDS) > 0 ||
+                builder.getCpuTimeLimit(TimeUnit.NANOSECONDS) > 0 || builder.getMemoryLimit() > 0 || builder.isCancellable();
+    }
+
+    long getMaxInstructions() {
+        return maxInstructions;
+    }
+
+    long getTimeLimit() {
+        return timeLimit;
+    }
+
+    long getCpuTimeLimit() {
+        return cpuTimeLimit;
+    }
+
+    long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    //whether coroutine switches must be reported through charge
+    boolean isAccounting() {
+        return cpuTimeLimit > 0 || memoryLimit > 0;
+    }
+
+    long getInstructionsUsed() {
+        long budget = maxInstructions > 0 ? maxInstructions : Long.MAX_VALUE;
+        return Math.min(budget - effectiveRemaining(), budget);
+    }
+
+    long getInstructionsRemaining() {
+        return maxInstructions > 0 ? Math.max(effectiveRemaining(), 0) : Long.MAX_VALUE;
+    }
+
+    private long effectiveRemaining() {
+        if(savedRemaining < 0) return remaining;
+        return savedRemaining - (activeCycleLimit - Math.max(remaining, 0));
+    }
+
+    void reset() {
+        stop();
+        remaining = maxInstructions > 0 ? maxInstructions : Long.MAX_VALUE;
+    }
+
+    //deadlines and the allocation budget are relative to the start of the outermost evaluation
+    void start(Budget budget, BooleanSupplier cancelled) {
+        activeCycleLimit = maxInstructions;
+        long cycles = budget.getCycleLimit();
+        if(cycles > 0 && cycles < remaining) {
+            //the evaluator budget is charged with what the call used once it stops
+            savedRemaining = remaining;
+            remaining = cycles;
+            activeCycleLimit = cycles;
+        }
+        activeTimeLimit = min(timeLimit, budget.getTimeLimit(TimeUnit.NANOSECONDS));
+        this.cancelled = cancelled;
+        if(activeTimeLimit <= 0 && cpuTimeLimit <= 0 && memoryLimit <= 0 && cancelled == null) return;
+        if(activeTimeLimit > 0) deadline = System.nanoTime() + activeTimeLimit;
+        if(cpuTimeLimit > 0 || memoryLimit > 0) {
+            cpuUsed = 0;
+            memoryUsed = 0;
+            //whatever the calling thread did before doesn't count
+            Thread t = Thread.currentThread();
+            long[] usage = new long[2];
+            threadUsage.put(t, usage);
+            read(t, usage);
+            lastThread = t;
+            lastUsage = usage;
+        }
+        untilCheck = CHECK_INTERVAL;
+        checking = true;
+    }
+
+    void stop() {
+        if(savedRemaining >= 0) {
+            remaining = effectiveRemaining();
+            savedRemaining = -1;
+        }
+        activeCycleLimit = maxInstructions;
+        checking = false;
+        cancelled = null;
+        lastThread = null;
+        lastUsage = null;
+    }
+
+    //ends the running evaluation, keeping what's needed to continue it later with resume. evaluations interleaved by a
+    //CoroutineScheduler keep their own deadline, cpu time and allocations this way, and their own instruction budget
+    //if ownCycles is set, otherwise they share the evaluator's
+    Session suspend(boolean ownCycles) {
+        Session session = new Session(ownCycles ? remaining : 0, ownCycles, activeTimeLimit, deadline, cancelled,
+                checking, untilCheck, cpuUsed, memoryUsed);
+        stop();
+        return session;
+    }
+
+    void resume(Session session) {
+        if(session.ownCycles) remaining = session.remaining;
+        activeCycleLimit = maxInstructions;
+        activeTimeLimit = session.activeTimeLimit;
+        deadline = session.deadline;
+        cancelled = session.cancelled;
+        cpuUsed = session.cpuUsed;
+        memoryUsed = session.memoryUsed;
+        //slices can be shorter than the check interval
+        untilCheck = session.untilCheck;
+        checking = session.checking;
+    }
+
+    void startSlice(LuaThread thread, long slice, LuaValue preempted) {
+        this.sliceThread = thread;
+        this.slice = slice;
+        this.sliceLeft = slice;
+        this.preempted = preempted;
+        this.slicing = true;
+    }
+
+    void stopSlice() {
+        slicing = false;
+        sliceThread = null;
+        preempted = null;
+    }
+
+    private void preempt() {
+        //coroutines created by the script itself must not be yielded to the script, wait until control is back
+        //on the scheduled coroutine
+        if(globals.running != sliceThread) {
+            sliceLeft = 1;
+            return;
+        }
+        sliceLeft = slice;
+        globals.yield(preempted);
+    }
+
+    private static long min(long limit, long other) {
+        if(limit <= 0) return other;
+        if(other <= 0) return limit;
+        return Math.min(limit, other);
+    }
+
+    private void checkLimits() {
+        //like the instruction budget, stay exceeded after the first failure
+        untilCheck = 1;
+        if(cancelled != null && cancelled.getAsBoolean()) {
+            throw new EvaluationCancelledException();
+        }
+        if(activeTimeLimit > 0 && System.nanoTime() - deadline > 0) {
+            throw new TimeLimitExceededException(activeTimeLimit, false);
+        }
+        if(cpuTimeLimit > 0 || memoryLimit > 0) {
+            account();
+            if(cpuTimeLimit > 0 && cpuUsed > cpuTimeLimit) {
+                throw new TimeLimitExceededException(cpuTimeLimit, true);
+            }
+            if(memoryLimit > 0 && memoryUsed > memoryLimit) {
+                throw new MemoryLimitExceededException(memoryLimit, "Memory limit of " + memoryLimit + " bytes exceeded");
+            }
+        }
+        untilCheck = CHECK_INTERVAL;
+    }
 
-    CycleLimiter(int max) {
-        this.maxInstructions = max;
+    //charges the current thread before it stops running lua code, eg when it resumes or yields to a coroutine.
+    //the limits themselves are checked by the next instruction
+    void charge() {
+        if(!checking || !isAccounting()) return;
+        account();
+        if((cpuTimeLimit > 0 && cpuUsed > cpuTimeLimit) || (memoryLimit > 0 && memoryUsed > memoryLimit)) untilCheck = 1;
+    }
+
+    //throws the limit exceeded by the evaluation, if any
+    void checkExceeded() {
+        if(remaining < 0) throw new CycleLimitExceededException(activeCycleLimit);
+        if(checking) checkLimits();
+    }
+
+    //only one thread runs the evaluator's lua code at a time, coroutine switches happen under luaj's locks
+    private void account() {
+        Thread t = Thread.currentThread();
+        long[] last = t == lastThread ? lastUsage : threadUsage.get(t);
+        if(last == null) {
+            //a coroutine started by the script, everything its thread did was running it
+            last = new long[2];
+            threadUsage.put(t, last);
+        }
+        long cpu = last[0];
+        long allocated = last[1];
+        read(t, last);
+        cpuUsed += last[0] - cpu;
+        memoryUsed += last[1] - allocated;
+        lastThread = t;
+        lastUsage = last;
+    }
+
+    private void read(Thread t, long[] usage) {
+        if(cpuTimeLimit > 0) usage[0] = THREADS.getCurrentThreadCpuTime();
+        if(memoryLimit > 0) usage[1] = ((com.sun.management.ThreadMXBean)THREADS).getThreadAllocatedBytes(t.getId());
+    }
+
+    @Override
+    public LuaValue call(LuaValue modname, LuaValue env) {
+        super.call(modname, env);
+        this.globals = (Globals)env;
+        //only the hooks are wanted, scripts must not get to the debug table
+        env.set("debug", NIL);
+        LuaValue p = env.get("package");
+        if(p.istable()) p.get("loaded").set("debug", NIL);
+        return NIL;
     }
 
     @Override
     public void onInstruction(int pc, Varargs v, int top) {
-        if(++instructions > maxInstructions) throw new CycleLimitExceededException(maxInstructions);
-        super.onInstruction(pc, v, top);
+        //once exceeded every following instruction fails too, so pcall can't be used to keep running
+        if(--remaining < 0) throw new CycleLimitExceededException(activeCycleLimit);
+        if(checking && --untilCheck == 0) checkLimits();
+        if(slicing && --sliceLeft <= 0) preempt();
+        if(mode == Mode.PRECISE) super.onInstruction(pc, v, top);
+    }
+
+    @Override
+    public void onCall(LuaFunction f) {
+        if(mode == Mode.PRECISE) super.onCall(f);
+    }
+
+    @Override
+    public void onCall(LuaClosure c, Varargs varargs, LuaValue[] stack) {
+        if(mode == Mode.PRECISE) super.onCall(c, varargs, stack);
+    }
+
+    @Override
+    public void onReturn() {
+        if(mode == Mode.PRECISE) super.onReturn();
+    }
+
+    @Override
+    public String traceback(int level) {
+        return mode == Mode.PRECISE ? super.traceback(level) : "stack traceback: unavailable";
+    }
+
+    static final class Session {
+        private final long remaining;
+        private final boolean ownCycles;
+        private final long activeTimeLimit;
+        private final long deadline;
+        private final BooleanSupplier cancelled;
+        private final boolean checking;
+        private final int untilCheck;
+        private final long cpuUsed;
+        private final long memoryUsed;
+
+        private Session(long remaining, boolean ownCycles, long activeTimeLimit, long deadline, BooleanSupplier cancelled,
+                        boolean checking, int untilCheck, long cpuUsed, long memoryUsed) {
+            this.remaining = remaining;
+            this.ownCycles = ownCycles;
+            this.activeTimeLimit = activeTimeLimit;
+            this.deadline = deadline;
+            this.cancelled = cancelled;
+            this.checking = checking;
+            this.untilCheck = untilCheck;
+            this.cpuUsed = cpuUsed;
+            this.memoryUsed = memoryUsed;
+        }
+    }
+
+    public enum Mode {
+        /**
+         * Keeps the call stack bookkeeping of the debug library, so errors carry a full traceback.
+         */
+        PRECISE,
+        /**
+         * Only decrements the budget on each instruction, skipping the call stack bookkeeping that makes the debug hooks expensive.
+         */
+        FAST
     }
 }
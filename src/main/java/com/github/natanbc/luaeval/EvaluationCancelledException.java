@@ -0,0 +1,8 @@
+package com.github.natanbc.luaeval;
+
+@SuppressWarnings("unused")
+public class EvaluationCancelledException extends RuntimeException {
+    EvaluationCancelledException() {
+        super("Evaluation cancelled");
+    }
+}
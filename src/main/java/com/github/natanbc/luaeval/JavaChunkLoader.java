@@ -0,0 +1,161 @@
+package com.github.natanbc.luaeval;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.luajc.JavaGen;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+//loads chunks as java classes generated by luaj's LuaJC backend once they were loaded a number of times,
+//interpreting them until then. generated code doesn't call the debug hooks, so this is only installed in
+//evaluators without limits.
+//
+//classes are shared by every evaluator and kept for as long as the prototype they were generated from,
+//so chunks evicted from the ChunkCache get their classes unloaded too. each chunk gets its own class loader
+class JavaChunkLoader implements Globals.Loader {
+    //LuaJC needs bcel, which isn't a dependency of luaj
+    static final boolean AVAILABLE = isAvailable();
+
+    //weak identity keys, every load looks its prototype up here so it must not take a lock
+    private static final ConcurrentMap<Key, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Prototype> COLLECTED = new ReferenceQueue<>();
+
+    private final int threshold;
+    private final Globals.Loader interpreter;
+
+    JavaChunkLoader(int threshold, Globals.Loader interpreter) {
+        this.threshold = threshold;
+        this.interpreter = interpreter;
+    }
+
+    @Override
+    public LuaFunction load(Prototype prototype, String chunkName, LuaValue env) throws IOException {
+        Entry entry = entry(prototype);
+        Class<?> compiled = entry.get(prototype, chunkName, threshold);
+        if(compiled == null) return interpreter.load(prototype, chunkName, env);
+        try {
+            LuaFunction f = (LuaFunction)compiled.getDeclaredConstructor().newInstance();
+            f.initupvalue1(env);
+            return f;
+        } catch(ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Entry entry(Prototype prototype) {
+        Reference<?> ref;
+        while((ref = COLLECTED.poll()) != null) {
+            ENTRIES.remove(ref);
+        }
+        Entry entry = ENTRIES.get(new Key(prototype, null));
+        if(entry != null) return entry;
+        Entry created = new Entry();
+        entry = ENTRIES.putIfAbsent(new Key(prototype, COLLECTED), created);
+        return entry == null ? created : entry;
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("org.apache.bcel.generic.ClassGen", false, JavaChunkLoader.class.getClassLoader());
+            return true;
+        } catch(ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static class Key extends WeakReference<Prototype> {
+        private final int hash;
+
+        Key(Prototype referent, ReferenceQueue<Prototype> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(obj == this) return true;
+            if(!(obj instanceof Key)) return false;
+            Prototype p = get();
+            return p != null && p == ((Key)obj).get();
+        }
+    }
+
+    private static class Entry {
+        private int loads;
+        private boolean failed;
+        private volatile Class<?> compiled;
+
+        Class<?> get(Prototype prototype, String chunkName, int threshold) {
+            Class<?> c = compiled;
+            if(c != null) return c;
+            synchronized(this) {
+                if(compiled != null || failed || ++loads <= threshold) return compiled;
+                try {
+                    compiled = c = ChunkClassLoader.define(prototype, chunkName);
+                } catch(RuntimeException | LinkageError e) {
+                    //eg functions too large for a java method, keep interpreting them
+                    failed = true;
+                }
+                return c;
+            }
+        }
+    }
+
+    private static class ChunkClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes = new HashMap<>();
+
+        private ChunkClassLoader() {
+            super(LuaValue.class.getClassLoader());
+        }
+
+        static Class<?> define(Prototype prototype, String chunkName) {
+            String source = chunkName.startsWith("@") || chunkName.startsWith("=") ? chunkName.substring(1) : chunkName;
+            JavaGen gen = new JavaGen(prototype, className(source), source, false);
+            ChunkClassLoader loader = new ChunkClassLoader();
+            loader.add(gen);
+            try {
+                return loader.loadClass(gen.classname);
+            } catch(ClassNotFoundException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private void add(JavaGen gen) {
+            classes.put(gen.classname, gen.bytecode);
+            if(gen.inners != null) {
+                for(JavaGen inner : gen.inners) add(inner);
+            }
+        }
+
+        //the name only shows up in java stack traces, every chunk has its own loader so they can't clash
+        private static String className(String source) {
+            StringBuilder sb = new StringBuilder("lua_");
+            for(int i = 0; i < source.length() && sb.length() < 64; i++) {
+                char c = source.charAt(i);
+                sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+            }
+            return sb.toString();
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.remove(name);
+            if(bytes == null) throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.github.natanbc.luaeval;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.TwoArgFunction;
+import org.luaj.vm2.lib.VarArgFunction;
+
+//caps the functions of the string and table libraries that can allocate an unbounded amount of memory in a single call,
+//before they allocate it. only table.insert is checked against the table size limit, tables grown by assigning to
+//new keys aren't, the memory limit covers those. coroutine bodies look up string methods in their evaluator's library,
+//and with a cpu time or memory limit, coroutine switches charge the thread switching away for what it used
+class LimitedLibrary extends TwoArgFunction {
+    private final String name;
+    private final LuaValue library;
+    private final int maxStringLength;
+    private final int maxTableSize;
+    private final LuaEvaluator evaluator;
+    private final CycleLimiter limiter;
+
+    private LimitedLibrary(String name, LuaValue library, int maxStringLength, int maxTableSize, LuaEvaluator evaluator) {
+        this.name = name;
+        this.library = library;
+        this.maxStringLength = maxStringLength;
+        this.maxTableSize = maxTableSize;
+        this.evaluator = evaluator;
+        this.limiter = evaluator == null ? null : evaluator.getCycleLimiter();
+    }
+
+    //evaluator is only used by the coroutine library, the fallback string library of StringMetatable has none
+    static LuaValue wrap(LuaLibrary type, LuaValue library, int maxStringLength, int maxTableSize, LuaEvaluator evaluator) {
+        if((type == LuaLibrary.STRING && maxStringLength > 0) || (type == LuaLibrary.TABLE && (maxStringLength > 0 || maxTableSize > 0)) ||
+                type == LuaLibrary.COROUTINE) {
+            return new LimitedLibrary(type.getGlobalName(), library, maxStringLength, maxTableSize, evaluator);
+        }
+        return library;
+    }
+
+    @Override
+    public LuaValue call(LuaValue modname, LuaValue env) {
+        LuaValue result = library.call(modname, env);
+        //not every library returns its table, but all of them set it on the environment
+        LuaValue t = result.istable() ? result : env.rawget(name);
+        if(!t.istable()) return result;
+        if(name.equals(LuaLibrary.COROUTINE.getGlobalName())) {
+            replace(t, "create", Create::new);
+            replace(t, "wrap", Wrap::new);
+            if(limiter != null && limiter.isAccounting()) {
+                replace(t, "resume", Switch::new);
+                replace(t, "yield", Switch::new);
+            }
+            return result;
+        }
+        if(maxStringLength > 0) {
+            replace(t, "rep", Rep::new);
+            replace(t, "concat", Concat::new);
+        }
+        if(maxTableSize > 0) {
+            replace(t, "insert", Insert::new);
+        }
+        return result;
+    }
+
+    private void replace(LuaValue table, String name, Wrapper wrapper) {
+        LuaValue f = table.get(name);
+        if(f.isfunction()) table.set(name, wrapper.wrap(this, f));
+    }
+
+    private void checkStringLength(long length) {
+        if(length > maxStringLength) {
+            throw new MemoryLimitExceededException(maxStringLength, "String length limit of " + maxStringLength + " exceeded");
+        }
+    }
+
+    private interface Wrapper {
+        LuaValue wrap(LimitedLibrary limits, LuaValue function);
+    }
+
+    private static class Rep extends VarArgFunction {
+        private final LimitedLibrary limits;
+        private final LuaValue rep;
+
+        Rep(LimitedLibrary limits, LuaValue rep) {
+            this.limits = limits;
+            this.rep = rep;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            LuaString s = args.checkstring(1);
+            int n = args.checkint(2);
+            LuaString sep = args.optstring(3, EMPTYSTRING);
+            if(n > 0) limits.checkStringLength((long)s.length() * n + (long)sep.length() * (n - 1));
+            return rep.invoke(args);
+        }
+    }
+
+    private static class Concat extends VarArgFunction {
+        private final LimitedLibrary limits;
+        private final LuaValue concat;
+
+        Concat(LimitedLibrary limits, LuaValue concat) {
+            this.limits = limits;
+            this.concat = concat;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            LuaTable list = args.checktable(1);
+            LuaString sep = args.optstring(2, EMPTYSTRING);
+            int i = args.optint(3, 1);
+            int j = args.isnoneornil(4) ? list.length() : args.checkint(4);
+            long length = 0;
+            for(int k = i; k <= j; k++) {
+                LuaValue v = list.get(k);
+                //non string values make the original raise its usual error
+                if(!v.isstring()) break;
+                length += v.strvalue().length() + (k < j ? sep.length() : 0);
+                limits.checkStringLength(length);
+            }
+            return concat.invoke(args);
+        }
+    }
+
+    private static class Insert extends VarArgFunction {
+        private final LimitedLibrary limits;
+        private final LuaValue insert;
+
+        Insert(LimitedLibrary limits, LuaValue insert) {
+            this.limits = limits;
+            this.insert = insert;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            int size = args.checktable(1).length();
+            if(size >= limits.maxTableSize) {
+                throw new MemoryLimitExceededException(limits.maxTableSize, "Table size limit of " + limits.maxTableSize + " exceeded");
+            }
+            return insert.invoke(args);
+        }
+    }
+
+    //resume and yield, the running thread is charged before control moves to another one
+    private static class Switch extends VarArgFunction {
+        private final LimitedLibrary limits;
+        private final LuaValue function;
+
+        Switch(LimitedLibrary limits, LuaValue function) {
+            this.limits = limits;
+            this.function = function;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            limits.limiter.charge();
+            try {
+                return function.invoke(args);
+            } catch(LuaError e) {
+                //coroutines only keep the message of their errors, raise the limit the coroutine exceeded again
+                limits.limiter.checkExceeded();
+                throw e;
+            }
+        }
+    }
+
+    //coroutines run on threads of their own, which need the evaluator's string library too. their thread is charged
+    //when they finish, as nothing runs on it afterwards
+    private static class Body extends VarArgFunction {
+        private final LimitedLibrary limits;
+        private final LuaValue function;
+
+        Body(LimitedLibrary limits, LuaValue function) {
+            this.limits = limits;
+            this.function = function;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            LuaValue strings = StringMetatable.enter(limits.evaluator.getStringLibrary());
+            try {
+                return function.invoke(args);
+            } finally {
+                if(limits.limiter != null) limits.limiter.charge();
+                StringMetatable.exit(strings);
+            }
+        }
+    }
+
+    private static class Create extends VarArgFunction {
+        private final LimitedLibrary limits;
+        private final LuaValue create;
+
+        Create(LimitedLibrary limits, LuaValue create) {
+            this.limits = limits;
+            this.create = create;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            return create.call(new Body(limits, args.checkfunction(1)));
+        }
+    }
+
+    private static class Wrap extends VarArgFunction {
+        private final LimitedLibrary limits;
+        private final LuaValue wrap;
+
+        Wrap(LimitedLibrary limits, LuaValue wrap) {
+            this.limits = limits;
+            this.wrap = wrap;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            LuaValue f = wrap.call(new Body(limits, args.checkfunction(1)));
+            //the returned function resumes the coroutine directly, without going through coroutine.resume
+            return limits.limiter != null && limits.limiter.isAccounting() ? new Switch(limits, f) : f;
+        }
+    }
+}
@@ -1,57 +1,82 @@
 package com.github.natanbc.luaeval;
 
 import com.github.natanbc.luaeval.utils.EvaluatorGlobals;
-import com.github.natanbc.luaeval.utils.JavaLib;
 import com.github.natanbc.luaeval.utils.LuaHelper;
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
 import org.luaj.vm2.compiler.LuaC;
-import org.luaj.vm2.lib.Bit32Lib;
-import org.luaj.vm2.lib.CoroutineLib;
-import org.luaj.vm2.lib.PackageLib;
-import org.luaj.vm2.lib.StringLib;
-import org.luaj.vm2.lib.TableLib;
 import org.luaj.vm2.lib.jse.CoerceJavaToLua;
-import org.luaj.vm2.lib.jse.JseBaseLib;
-import org.luaj.vm2.lib.jse.JseIoLib;
-import org.luaj.vm2.lib.jse.JseMathLib;
-import org.luaj.vm2.lib.jse.JseOsLib;
-import org.luaj.vm2.lib.jse.LuajavaLib;
 
-import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 @SuppressWarnings({"Duplicates", "unused", "WeakerAccess"})
 public class LuaEvaluator {
-    private final List<AccessibleObject> blocked = new LinkedList<>();
+    private AccessPolicy accessPolicy = AccessPolicy.EMPTY;
     private final ClassLoader classLoader;
     private final EvaluatorGlobals globals;
+    private final CycleLimiter cycleLimiter;
+    private final LuaValue stringLibrary;
+    private final boolean generatedInterfaces;
+    private final boolean refillCyclesOnEval;
+    private final boolean luaJC;
+    private volatile boolean javaReferences;
+    private int depth;
+    private ChunkCache chunkCache = ChunkCache.getDefault();
+    private ChunkStore chunkStore;
+    private MetricsRecorder metrics = MetricsRecorder.NONE;
+    //async evaluations of the same evaluator run one at a time
+    private final ReentrantLock asyncLock = new ReentrantLock();
 
-    public LuaEvaluator(ClassLoader loader, int cycleLimit) {
-        this.classLoader = loader;
+    LuaEvaluator(LuaEvaluatorBuilder builder) {
+        this.classLoader = builder.getClassLoader();
+        this.generatedInterfaces = builder.isGeneratedInterfaces();
+        this.refillCyclesOnEval = builder.isRefillCyclesOnEval();
         EvaluatorGlobals globals = new EvaluatorGlobals(this);
-        globals.load(new JseBaseLib());
-        globals.load(new PackageLib());
-        globals.load(new Bit32Lib());
-        globals.load(new TableLib());
-        globals.load(new StringLib());
-        globals.load(new CoroutineLib());
-        globals.load(new JseMathLib());
-        globals.load(new JseIoLib());
-        globals.load(new JseOsLib());
-        globals.load(new LuajavaLib());
-        globals.load(new JavaLib());
+        //the same java object maps to the same lua value while that value is reachable, and hooks only run when it's
+        //created. wrappers are held weakly, so an object wrapped again after its wrapper was collected runs them again
+        if(builder.isCachedWrappers()) globals.enableWrapperCache();
+        this.cycleLimiter = CycleLimiter.isNeeded(builder) ? new CycleLimiter(builder) : null;
+        int maxStringLength = builder.getMaxStringLength();
+        int maxTableSize = builder.getMaxTableSize();
+        for(LuaLibrary library : builder.getLibraries()) {
+            //string methods ("abc"):upper() are resolved in the evaluator's string library, which must exist up front
+            if(builder.isLazyLibraries() && library.isLazy() && library != LuaLibrary.STRING) {
+                globals.addLazyLibrary(library.getGlobalName(), ()->LimitedLibrary.wrap(library, library.create(), maxStringLength, maxTableSize, this));
+            } else {
+                globals.loadLibrary(LimitedLibrary.wrap(library, library.create(), maxStringLength, maxTableSize, this));
+            }
+        }
+        //kept even if the script replaces the global, like the string metatable of standard lua
+        LuaValue strings = globals.rawget("string");
+        this.stringLibrary = strings.istable() ? strings : new LuaTable();
+        StringMetatable.install(maxStringLength);
         LoadState.install(globals);
         LuaC.install(globals);
-        if(cycleLimit > 0) globals.load(new CycleLimiter(cycleLimit));
+        if(cycleLimiter != null) globals.loadLibrary(cycleLimiter);
+        //generated classes don't call the debug hooks, so limits couldn't be enforced on them
+        this.luaJC = builder.getLuaJCThreshold() >= 0 && cycleLimiter == null && JavaChunkLoader.AVAILABLE;
+        if(luaJC) globals.loader = new JavaChunkLoader(builder.getLuaJCThreshold(), globals.loader);
         globals.set("debug", LuaValue.NIL);
         this.globals = globals;
     }
 
+    public LuaEvaluator(ClassLoader loader, int cycleLimit) {
+        this(new LuaEvaluatorBuilder().setClassLoader(loader).setCycleLimit(cycleLimit).setLazyLibraries(false));
+    }
+
     public LuaEvaluator(int cycleLimit) {
         this(ClassLoader.getSystemClassLoader(), cycleLimit);
     }
@@ -60,6 +85,10 @@ public class LuaEvaluator {
         this(-1);
     }
 
+    public static LuaEvaluatorBuilder builder() {
+        return new LuaEvaluatorBuilder();
+    }
+
     public ClassLoader getClassLoader() {
         return classLoader;
     }
@@ -68,21 +97,114 @@ public class LuaEvaluator {
         return globals;
     }
 
+    public long getCycleLimit() {
+        return cycleLimiter == null ? -1 : cycleLimiter.getMaxInstructions();
+    }
+
+    public long getTimeLimit(TimeUnit unit) {
+        return cycleLimiter == null || cycleLimiter.getTimeLimit() <= 0 ? -1 : unit.convert(cycleLimiter.getTimeLimit(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getCpuTimeLimit(TimeUnit unit) {
+        return cycleLimiter == null || cycleLimiter.getCpuTimeLimit() <= 0 ? -1 : unit.convert(cycleLimiter.getCpuTimeLimit(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getMemoryLimit() {
+        return cycleLimiter == null || cycleLimiter.getMemoryLimit() <= 0 ? -1 : cycleLimiter.getMemoryLimit();
+    }
+
+    public long getCyclesUsed() {
+        return cycleLimiter == null ? 0 : cycleLimiter.getInstructionsUsed();
+    }
+
+    public long getCyclesRemaining() {
+        return cycleLimiter == null ? Long.MAX_VALUE : cycleLimiter.getInstructionsRemaining();
+    }
+
+    public LuaEvaluator refillCycles() {
+        if(cycleLimiter != null) cycleLimiter.reset();
+        return this;
+    }
+
+    public LuaEvaluator snapshot() {
+        globals.snapshot();
+        return this;
+    }
+
+    public LuaEvaluator reset() {
+        globals.restore();
+        if(cycleLimiter != null) cycleLimiter.reset();
+        return this;
+    }
+
+    //whether lua values of this evaluator were handed to java code, eg as interface implementations or tables passed
+    //as Object. those keep calling into the evaluator, so it can't be reset and reused by someone else
+    public boolean hasJavaReferences() {
+        return javaReferences;
+    }
+
+    public LuaEvaluator markJavaReferences() {
+        javaReferences = true;
+        return this;
+    }
+
+    //whether chunks get compiled to java classes, false if it was requested but limits are set or bcel is missing
+    public boolean isLuaJC() {
+        return luaJC;
+    }
+
+    public boolean isGeneratedInterfaces() {
+        return generatedInterfaces;
+    }
+
+    public AccessPolicy getAccessPolicy() {
+        return accessPolicy;
+    }
+
+    public LuaEvaluator setAccessPolicy(AccessPolicy accessPolicy) {
+        this.accessPolicy = Objects.requireNonNull(accessPolicy);
+        return this;
+    }
+
+    public boolean shouldBlockClass(Class<?> cls) {
+        return accessPolicy.isBlocked(cls);
+    }
+
     public boolean shouldBlockMethod(Method m) {
-        return blocked.contains(m);
+        return accessPolicy.isBlocked(m);
     }
 
     public boolean shouldBlockConstructor(Constructor<?> c) {
-        return blocked.contains(c);
+        return accessPolicy.isBlocked(c);
     }
 
     public LuaEvaluator blockMethod(Method m) {
-        blocked.add(m);
+        accessPolicy = accessPolicy.block(m);
         return this;
     }
 
     public LuaEvaluator blockConstructor(Constructor<?> c) {
-        blocked.add(c);
+        accessPolicy = accessPolicy.block(c);
+        return this;
+    }
+
+    public LuaEvaluator blockClass(Class<?> cls) {
+        accessPolicy = accessPolicy.blockClass(cls);
+        return this;
+    }
+
+    public LuaEvaluator blockPackage(String name) {
+        accessPolicy = accessPolicy.blockPackage(name);
+        return this;
+    }
+
+    public LuaEvaluator allowClass(Class<?> cls) {
+        accessPolicy = accessPolicy.allowClass(cls);
+        return this;
+    }
+
+    public LuaEvaluator allowPackage(String name) {
+        accessPolicy = accessPolicy.allowPackage(name);
         return this;
     }
 
@@ -91,35 +213,268 @@ public class LuaEvaluator {
         return this;
     }
 
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    public LuaEvaluator setChunkCache(ChunkCache cache) {
+        this.chunkCache = cache;
+        return this;
+    }
+
+    public ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    public LuaEvaluator setChunkStore(ChunkStore store) {
+        this.chunkStore = store;
+        return this;
+    }
+
+    public MetricsRecorder getMetrics() {
+        return metrics;
+    }
+
+    public LuaEvaluator setMetrics(MetricsRecorder metrics) {
+        this.metrics = metrics == null ? MetricsRecorder.NONE : metrics;
+        return this;
+    }
+
+    public Prototype compile(String code, String chunkName) {
+        if(chunkCache != null) return chunkCache.get(globals, code, chunkName, metrics, chunkStore);
+        if(chunkStore != null) return chunkStore.get(globals, code, chunkName, metrics);
+        return ChunkCache.compile(globals, code, chunkName, metrics);
+    }
+
+    public LuaValue load(String code, String chunkName) {
+        return load(compile(code, chunkName), chunkName);
+    }
+
+    public LuaValue load(Prototype p, String chunkName) {
+        try {
+            return globals.loader.load(p, chunkName, globals);
+        } catch(LuaError e) {
+            throw e;
+        } catch(Exception e) {
+            throw new LuaError("load " + chunkName + ": " + e);
+        }
+    }
+
+    public LuaValue eval(String code, String chunkName) {
+        return run(load(code, chunkName), chunkName, Budget.UNLIMITED, null);
+    }
+
+    public LuaValue eval(Prototype p, String chunkName) {
+        return run(load(p, chunkName), chunkName, Budget.UNLIMITED, null);
+    }
+
+    public LuaValue eval(String code, String chunkName, Budget budget) {
+        checkBudget(budget);
+        return run(load(code, chunkName), chunkName, budget, null);
+    }
+
+    public LuaValue eval(Prototype p, String chunkName, Budget budget) {
+        checkBudget(budget);
+        return run(load(p, chunkName), chunkName, budget, null);
+    }
+
+    CycleLimiter getCycleLimiter() {
+        return cycleLimiter;
+    }
+
+    boolean isRefillCyclesOnEval() {
+        return refillCyclesOnEval;
+    }
+
+    //string methods are looked up here while this evaluator runs, see StringMetatable
+    LuaValue getStringLibrary() {
+        return stringLibrary;
+    }
+
+    //runs an already loaded chunk, eg one reused for many evaluations
+    LuaValue call(LuaValue chunk, String chunkName) {
+        return run(chunk, chunkName, Budget.UNLIMITED, null);
+    }
+
+    //calls a lua function of this evaluator from java, eg one returned by eval, with the limits and string library of an
+    //evaluation. implemented interfaces and lambdas call their functions this way, calls made while a script of this
+    //evaluator runs join its evaluation
+    public Varargs invoke(LuaValue function, Varargs args) {
+        startLimits(Budget.UNLIMITED, null);
+        LuaValue strings = StringMetatable.enter(stringLibrary);
+        depth++;
+        try {
+            return function.invoke(args);
+        } finally {
+            if(--depth == 0 && cycleLimiter != null) cycleLimiter.stop();
+            StringMetatable.exit(strings);
+        }
+    }
+
+    public CompletableFuture<LuaValue> evalAsync(String code, String chunkName) {
+        return evalAsync(code, chunkName, Budget.UNLIMITED, AsyncExecutor.DEFAULT);
+    }
+
+    public CompletableFuture<LuaValue> evalAsync(Prototype p, String chunkName) {
+        return evalAsync(p, chunkName, Budget.UNLIMITED, AsyncExecutor.DEFAULT);
+    }
+
+    public CompletableFuture<LuaValue> evalAsync(String code, String chunkName, Budget budget, Executor executor) {
+        return submit(()->load(code, chunkName), chunkName, budget, executor);
+    }
+
+    public CompletableFuture<LuaValue> evalAsync(Prototype p, String chunkName, Budget budget, Executor executor) {
+        return submit(()->load(p, chunkName), chunkName, budget, executor);
+    }
+
+    //cancelling the future interrupts the evaluating thread and stops the script at the next limit check. evaluators
+    //without a limiter couldn't stop a script, which would keep every later async evaluation waiting, so they're refused
+    private CompletableFuture<LuaValue> submit(Supplier<LuaValue> chunk, String chunkName, Budget budget, Executor executor) {
+        if(cycleLimiter == null) {
+            throw new IllegalStateException("Async evaluations need an evaluator with a limit or setCancellable(true)");
+        }
+        checkBudget(budget);
+        AsyncEvaluation evaluation = new AsyncEvaluation(chunk, chunkName, budget);
+        (executor == null ? AsyncExecutor.DEFAULT : executor).execute(evaluation);
+        return evaluation;
+    }
+
+    private void checkBudget(Budget budget) {
+        Objects.requireNonNull(budget, "budget");
+        if(!budget.isUnlimited() && cycleLimiter == null) {
+            throw new IllegalStateException("Per call budgets need an evaluator with a limit or setCancellable(true)");
+        }
+    }
+
+    private LuaValue run(LuaValue chunk, String chunkName, Budget budget, BooleanSupplier cancelled) {
+        startLimits(budget, cancelled);
+        LuaValue strings = StringMetatable.enter(stringLibrary);
+        try {
+            return execute(chunk, chunkName);
+        } finally {
+            StringMetatable.exit(strings);
+        }
+    }
+
+    //scripts calling back into eval share the budget and deadlines of the outermost call
+    private void startLimits(Budget budget, BooleanSupplier cancelled) {
+        if(depth == 0 && cycleLimiter != null) {
+            if(refillCyclesOnEval) cycleLimiter.reset();
+            cycleLimiter.start(budget, cancelled);
+        }
+    }
+
+    private LuaValue execute(LuaValue chunk, String chunkName) {
+        if(depth > 0 || metrics == MetricsRecorder.NONE) {
+            depth++;
+            try {
+                return chunk.call();
+            } finally {
+                if(--depth == 0 && cycleLimiter != null) cycleLimiter.stop();
+            }
+        }
+        long start = System.nanoTime();
+        long used = cycleLimiter == null ? -1 : cycleLimiter.getInstructionsUsed();
+        boolean failed = true;
+        depth++;
+        try {
+            LuaValue v = chunk.call();
+            failed = false;
+            return v;
+        } catch(RuntimeException e) {
+            RuntimeException limit = findLimit(e);
+            if(limit != null) metrics.onLimitExceeded(limit);
+            throw e;
+        } finally {
+            if(--depth == 0 && cycleLimiter != null) cycleLimiter.stop();
+            long instructions = cycleLimiter == null ? -1 : cycleLimiter.getInstructionsUsed() - used;
+            metrics.onEval(chunkName, System.nanoTime() - start, instructions, failed);
+        }
+    }
+
+    //the vm wraps exceptions thrown by the limiter in LuaErrors
+    private static RuntimeException findLimit(Throwable t) {
+        for(int i = 0; t != null && i < 8; t = t.getCause(), i++) {
+            if(t instanceof CycleLimitExceededException || t instanceof TimeLimitExceededException ||
+                    t instanceof MemoryLimitExceededException) return (RuntimeException)t;
+        }
+        return null;
+    }
+
+    private class AsyncEvaluation extends CompletableFuture<LuaValue> implements Runnable {
+        private final Supplier<LuaValue> chunk;
+        private final String chunkName;
+        private final Budget budget;
+        private Thread thread;
+
+        AsyncEvaluation(Supplier<LuaValue> chunk, String chunkName, Budget budget) {
+            this.chunk = chunk;
+            this.chunkName = chunkName;
+            this.budget = budget;
+        }
+
+        @Override
+        public void run() {
+            synchronized(this) {
+                if(isDone()) return;
+                thread = Thread.currentThread();
+            }
+            try {
+                asyncLock.lockInterruptibly();
+                try {
+                    if(!isDone()) complete(LuaEvaluator.this.run(chunk.get(), chunkName, budget, this::isCancelled));
+                } finally {
+                    asyncLock.unlock();
+                }
+            } catch(Throwable t) {
+                completeExceptionally(t);
+            } finally {
+                //pooled threads must not carry an interrupt meant for this evaluation into their next task
+                synchronized(this) {
+                    thread = null;
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if(cancelled) {
+                synchronized(this) {
+                    if(thread != null) thread.interrupt();
+                }
+            }
+            return cancelled;
+        }
+    }
+
     public LuaValue eval(String code) {
-        return globals.load(code).call();
+        return eval(code, code);
     }
 
-    public LuaEvaluator set(String key, Object value) {
-        if(value == null) return remove(key);
+    public LuaValue toLua(Object value) {
+        if(value == null) return LuaValue.NIL;
         if(value instanceof LuaValue) {
-            globals.set(key, (LuaValue)value);
+            return (LuaValue)value;
         } else if(value instanceof Boolean || value instanceof Byte || value instanceof Short || value instanceof Character ||
                 value instanceof Integer || value instanceof Float || value instanceof Long || value instanceof Double ||
                 value instanceof String) {
-            globals.set(key, CoerceJavaToLua.coerce(value));
+            return CoerceJavaToLua.coerce(value);
         } else {
-            globals.set(key, LuaHelper.coerce(this, value));
+            return LuaHelper.coerce(this, value);
         }
+    }
+
+    public LuaEvaluator set(String key, Object value) {
+        if(value == null) return remove(key);
+        globals.set(key, toLua(value));
         return this;
     }
 
     public LuaEvaluator set(int key, Object value) {
         if(value == null) return remove(key);
-        if(value instanceof LuaValue) {
-            globals.set(key, (LuaValue)value);
-        } else if(value instanceof Boolean || value instanceof Byte || value instanceof Short || value instanceof Character ||
-                value instanceof Integer || value instanceof Float || value instanceof Long || value instanceof Double ||
-                value instanceof String) {
-            globals.set(key, CoerceJavaToLua.coerce(value));
-        } else {
-            globals.set(key, LuaHelper.coerce(this, value));
-        }
+        globals.set(key, toLua(value));
         return this;
     }
 
@@ -0,0 +1,182 @@
+package com.github.natanbc.luaeval;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class LuaEvaluatorBuilder {
+    private final Set<LuaLibrary> libraries = EnumSet.allOf(LuaLibrary.class);
+    private ClassLoader classLoader = ClassLoader.getSystemClassLoader();
+    private long cycleLimit = -1;
+    private CycleLimiter.Mode cycleLimitMode = CycleLimiter.Mode.PRECISE;
+    private boolean refillCyclesOnEval = false;
+    private long timeLimit = -1;
+    private long cpuTimeLimit = -1;
+    private long memoryLimit = -1;
+    private int maxStringLength = -1;
+    private int maxTableSize = -1;
+    private boolean lazyLibraries = true;
+    private boolean generatedInterfaces = false;
+    private boolean cachedWrappers = false;
+    private boolean cancellable = false;
+    private int luaJCThreshold = -1;
+
+    public LuaEvaluatorBuilder setClassLoader(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setCycleLimit(long cycleLimit) {
+        this.cycleLimit = cycleLimit;
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setCycleLimitMode(CycleLimiter.Mode cycleLimitMode) {
+        this.cycleLimitMode = Objects.requireNonNull(cycleLimitMode);
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setRefillCyclesOnEval(boolean refillCyclesOnEval) {
+        this.refillCyclesOnEval = refillCyclesOnEval;
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setLazyLibraries(boolean lazyLibraries) {
+        this.lazyLibraries = lazyLibraries;
+        return this;
+    }
+
+    //implements interfaces with generated classes instead of java.lang.reflect.Proxy, off by default
+    public LuaEvaluatorBuilder setGeneratedInterfaces(boolean generatedInterfaces) {
+        this.generatedInterfaces = generatedInterfaces;
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setCancellable(boolean cancellable) {
+        this.cancellable = cancellable;
+        return this;
+    }
+
+    //compiles chunks to java classes once they were loaded this many times, 0 compiles them on the first load and -1
+    //disables it. needs bcel on the classpath and is ignored by evaluators with limits, see LuaEvaluator.isLuaJC
+    public LuaEvaluatorBuilder setLuaJCThreshold(int luaJCThreshold) {
+        this.luaJCThreshold = luaJCThreshold;
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setCachedWrappers(boolean cachedWrappers) {
+        this.cachedWrappers = cachedWrappers;
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setTimeLimit(long time, TimeUnit unit) {
+        this.timeLimit = unit.toNanos(time);
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setCpuTimeLimit(long time, TimeUnit unit) {
+        this.cpuTimeLimit = unit.toNanos(time);
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setMemoryLimit(long bytes) {
+        this.memoryLimit = bytes;
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setMaxStringLength(int maxStringLength) {
+        this.maxStringLength = maxStringLength;
+        return this;
+    }
+
+    //only checked by table.insert, tables grown with t[#t + 1] = v are left to setMemoryLimit
+    public LuaEvaluatorBuilder setMaxTableSize(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        return this;
+    }
+
+    public LuaEvaluatorBuilder setLibraries(LuaLibrary... libraries) {
+        this.libraries.clear();
+        Collections.addAll(this.libraries, libraries);
+        return this;
+    }
+
+    public LuaEvaluatorBuilder addLibraries(LuaLibrary... libraries) {
+        Collections.addAll(this.libraries, libraries);
+        return this;
+    }
+
+    public LuaEvaluatorBuilder removeLibraries(LuaLibrary... libraries) {
+        for(LuaLibrary l : libraries) {
+            this.libraries.remove(l);
+        }
+        return this;
+    }
+
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    public long getCycleLimit() {
+        return cycleLimit;
+    }
+
+    public CycleLimiter.Mode getCycleLimitMode() {
+        return cycleLimitMode;
+    }
+
+    public boolean isRefillCyclesOnEval() {
+        return refillCyclesOnEval;
+    }
+
+    public boolean isLazyLibraries() {
+        return lazyLibraries;
+    }
+
+    public long getTimeLimit(TimeUnit unit) {
+        return unit.convert(timeLimit, TimeUnit.NANOSECONDS);
+    }
+
+    public long getCpuTimeLimit(TimeUnit unit) {
+        return unit.convert(cpuTimeLimit, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public int getMaxStringLength() {
+        return maxStringLength;
+    }
+
+    public int getMaxTableSize() {
+        return maxTableSize;
+    }
+
+    public boolean isCancellable() {
+        return cancellable;
+    }
+
+    public int getLuaJCThreshold() {
+        return luaJCThreshold;
+    }
+
+    public boolean isCachedWrappers() {
+        return cachedWrappers;
+    }
+
+    public boolean isGeneratedInterfaces() {
+        return generatedInterfaces;
+    }
+
+    public Set<LuaLibrary> getLibraries() {
+        return Collections.unmodifiableSet(libraries);
+    }
+
+    public LuaEvaluator build() {
+        return new LuaEvaluator(this);
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.natanbc.luaeval;
+
+import com.github.natanbc.luaeval.utils.JavaLib;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.Bit32Lib;
+import org.luaj.vm2.lib.CoroutineLib;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.StringLib;
+import org.luaj.vm2.lib.TableLib;
+import org.luaj.vm2.lib.jse.JseBaseLib;
+import org.luaj.vm2.lib.jse.JseIoLib;
+import org.luaj.vm2.lib.jse.JseMathLib;
+import org.luaj.vm2.lib.jse.JseOsLib;
+import org.luaj.vm2.lib.jse.LuajavaLib;
+
+import java.util.function.Supplier;
+
+public enum LuaLibrary {
+    BASE(null, JseBaseLib::new),
+    PACKAGE(null, PackageLib::new),
+    BIT32("bit32", Bit32Lib::new),
+    TABLE("table", TableLib::new),
+    STRING("string", StringLib::new),
+    COROUTINE("coroutine", CoroutineLib::new),
+    MATH("math", JseMathLib::new),
+    IO("io", JseIoLib::new),
+    OS("os", JseOsLib::new),
+    LUAJAVA("luajava", LuajavaLib::new),
+    JAVA("Java", JavaLib::new);
+
+    private final String globalName;
+    private final Supplier<LuaValue> factory;
+
+    LuaLibrary(String globalName, Supplier<LuaValue> factory) {
+        this.globalName = globalName;
+        this.factory = factory;
+    }
+
+    //base and package define several globals, so they can't be loaded on first access
+    public boolean isLazy() {
+        return globalName != null;
+    }
+
+    public String getGlobalName() {
+        return globalName;
+    }
+
+    public LuaValue create() {
+        return factory.get();
+    }
+}
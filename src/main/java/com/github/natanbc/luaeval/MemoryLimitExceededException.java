@@ -0,0 +1,15 @@
+package com.github.natanbc.luaeval;
+
+@SuppressWarnings("unused")
+public class MemoryLimitExceededException extends RuntimeException {
+    private final long limit;
+
+    MemoryLimitExceededException(long limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,232 @@
+package com.github.natanbc.luaeval;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Executable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//thread safe aggregate of evaluator events, can be shared by several evaluators and exposed over jmx
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class Metrics implements MetricsRecorder, MetricsMXBean {
+    //bucket i counts evaluations that took less than 2^i microseconds, the last one everything slower
+    private static final int BUCKETS = 32;
+
+    private final LongAdder compiles = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+    private final LongAdder evals = new LongAdder();
+    private final LongAdder evalFailures = new LongAdder();
+    private final LongAdder evalNanos = new LongAdder();
+    private final AtomicLong maxEvalNanos = new AtomicLong();
+    private final LongAdder[] latencies = new LongAdder[BUCKETS];
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder javaCalls = new LongAdder();
+    private final ConcurrentMap<Executable, LongAdder> javaCallsByTarget = new ConcurrentHashMap<>();
+    private final LongAdder wraps = new LongAdder();
+    private final LongAdder overloadMisses = new LongAdder();
+    private final LongAdder cycleLimitTrips = new LongAdder();
+    private final LongAdder timeLimitTrips = new LongAdder();
+    private final LongAdder memoryLimitTrips = new LongAdder();
+    private ObjectName objectName;
+
+    public Metrics() {
+        for(int i = 0; i < BUCKETS; i++) {
+            latencies[i] = new LongAdder();
+        }
+    }
+
+    public synchronized Metrics register(String name) {
+        if(objectName != null) throw new IllegalStateException("Already registered as " + objectName);
+        try {
+            ObjectName n = new ObjectName("com.github.natanbc.luaeval:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+            objectName = n;
+        } catch(InstanceAlreadyExistsException e) {
+            throw new IllegalStateException("Metrics named " + name + " already registered", e);
+        } catch(JMException e) {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    public synchronized Metrics unregister() {
+        if(objectName == null) return this;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch(InstanceNotFoundException ignored) {
+        } catch(JMException e) {
+            throw new IllegalStateException(e);
+        }
+        objectName = null;
+        return this;
+    }
+
+    @Override
+    public void onCompile(String chunkName, long nanos) {
+        compiles.increment();
+        compileNanos.add(nanos);
+    }
+
+    @Override
+    public void onEval(String chunkName, long nanos, long instructions, boolean failed) {
+        evals.increment();
+        if(failed) evalFailures.increment();
+        evalNanos.add(nanos);
+        maxEvalNanos.accumulateAndGet(nanos, Math::max);
+        long micros = nanos / 1000;
+        int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        latencies[Math.min(bucket, BUCKETS - 1)].increment();
+        if(instructions > 0) this.instructions.add(instructions);
+    }
+
+    @Override
+    public void onJavaCall(Executable target) {
+        javaCalls.increment();
+        LongAdder count = javaCallsByTarget.get(target);
+        if(count == null) count = javaCallsByTarget.computeIfAbsent(target, k->new LongAdder());
+        count.increment();
+    }
+
+    @Override
+    public void onWrap(Class<?> type) {
+        wraps.increment();
+    }
+
+    @Override
+    public void onOverloadMiss(Executable[] candidates) {
+        overloadMisses.increment();
+    }
+
+    @Override
+    public void onLimitExceeded(RuntimeException limit) {
+        if(limit instanceof CycleLimitExceededException) cycleLimitTrips.increment();
+        else if(limit instanceof TimeLimitExceededException) timeLimitTrips.increment();
+        else if(limit instanceof MemoryLimitExceededException) memoryLimitTrips.increment();
+    }
+
+    @Override
+    public long getCompileCount() {
+        return compiles.sum();
+    }
+
+    @Override
+    public long getCompileTimeNanos() {
+        return compileNanos.sum();
+    }
+
+    @Override
+    public long getEvalCount() {
+        return evals.sum();
+    }
+
+    @Override
+    public long getEvalFailures() {
+        return evalFailures.sum();
+    }
+
+    @Override
+    public long getEvalTimeNanos() {
+        return evalNanos.sum();
+    }
+
+    @Override
+    public long getMaxEvalTimeNanos() {
+        return maxEvalNanos.get();
+    }
+
+    @Override
+    public long[] getEvalLatencyHistogram() {
+        long[] counts = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) {
+            counts[i] = latencies[i].sum();
+        }
+        return counts;
+    }
+
+    //upper bound, in microseconds, of the bucket containing the given percentile (0-100)
+    @Override
+    public long getEvalLatencyPercentile(double percentile) {
+        if(percentile < 0 || percentile > 100) throw new IllegalArgumentException("percentile not in [0, 100]");
+        long[] counts = getEvalLatencyHistogram();
+        long total = 0;
+        for(long c : counts) total += c;
+        if(total == 0) return 0;
+        long target = (long)Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if(seen >= target) return 1L << i;
+        }
+        return maxEvalNanos.get() / 1000;
+    }
+
+    @Override
+    public long getInstructionsExecuted() {
+        return instructions.sum();
+    }
+
+    @Override
+    public long getJavaCallCount() {
+        return javaCalls.sum();
+    }
+
+    @Override
+    public Map<String, Long> getJavaCallCounts() {
+        Map<String, Long> map = new TreeMap<>();
+        javaCallsByTarget.forEach((target, count)->map.merge(target.toGenericString(), count.sum(), Long::sum));
+        return map;
+    }
+
+    @Override
+    public long getWrapCount() {
+        return wraps.sum();
+    }
+
+    @Override
+    public long getOverloadMisses() {
+        return overloadMisses.sum();
+    }
+
+    @Override
+    public long getCycleLimitTrips() {
+        return cycleLimitTrips.sum();
+    }
+
+    @Override
+    public long getTimeLimitTrips() {
+        return timeLimitTrips.sum();
+    }
+
+    @Override
+    public long getMemoryLimitTrips() {
+        return memoryLimitTrips.sum();
+    }
+
+    @Override
+    public void reset() {
+        compiles.reset();
+        compileNanos.reset();
+        evals.reset();
+        evalFailures.reset();
+        evalNanos.reset();
+        maxEvalNanos.set(0);
+        for(LongAdder a : latencies) a.reset();
+        instructions.reset();
+        javaCalls.reset();
+        javaCallsByTarget.clear();
+        wraps.reset();
+        overloadMisses.reset();
+        cycleLimitTrips.reset();
+        timeLimitTrips.reset();
+        memoryLimitTrips.reset();
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.natanbc.luaeval;
+
+import java.util.Map;
+
+@SuppressWarnings("unused")
+public interface MetricsMXBean {
+    long getCompileCount();
+
+    long getCompileTimeNanos();
+
+    long getEvalCount();
+
+    long getEvalFailures();
+
+    long getEvalTimeNanos();
+
+    long getMaxEvalTimeNanos();
+
+    long[] getEvalLatencyHistogram();
+
+    long getEvalLatencyPercentile(double percentile);
+
+    long getInstructionsExecuted();
+
+    long getJavaCallCount();
+
+    Map<String, Long> getJavaCallCounts();
+
+    long getWrapCount();
+
+    long getOverloadMisses();
+
+    long getCycleLimitTrips();
+
+    long getTimeLimitTrips();
+
+    long getMemoryLimitTrips();
+
+    void reset();
+}
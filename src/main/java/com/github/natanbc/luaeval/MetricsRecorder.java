@@ -0,0 +1,28 @@
+package com.github.natanbc.luaeval;
+
+import java.lang.reflect.Executable;
+
+//receives events from evaluators. every method defaults to doing nothing and NONE is checked by identity on the
+//hot paths, so leaving metrics disabled costs close to nothing
+@SuppressWarnings("unused")
+public interface MetricsRecorder {
+    MetricsRecorder NONE = new MetricsRecorder() {};
+
+    //a chunk was compiled (chunk cache hits aren't reported)
+    default void onCompile(String chunkName, long nanos) {}
+
+    //an outermost evaluation finished, instructions is -1 if the evaluator doesn't count them
+    default void onEval(String chunkName, long nanos, long instructions, boolean failed) {}
+
+    //a method or constructor was called from lua
+    default void onJavaCall(Executable target) {}
+
+    //a new wrapper was created for a java object
+    default void onWrap(Class<?> type) {}
+
+    //the overloads of a method or constructor had to be scored, because the argument types weren't seen before
+    default void onOverloadMiss(Executable[] candidates) {}
+
+    //an evaluation was stopped by a cycle, time or memory limit
+    default void onLimitExceeded(RuntimeException limit) {}
+}
@@ -0,0 +1,157 @@
+package com.github.natanbc.luaeval;
+
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+//a script run by a CoroutineScheduler, completed with the first value returned by the script.
+//a coroutine.yield at the top level of the script parks the task until wake is called, preemptions don't
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ScriptTask extends CompletableFuture<LuaValue> {
+    final CoroutineScheduler scheduler;
+    final LuaEvaluator evaluator;
+    final LuaThread thread;
+    final int weight;
+    final long id;
+    final String chunkName;
+    //stride scheduling, the task with the lowest pass runs next and advances it by STRIDE / weight
+    long pass;
+    private State state = State.READY;
+    private Varargs resumeArgs = LuaValue.NONE;
+    private Varargs yielded = LuaValue.NONE;
+    private Varargs pendingWake;
+    //luaj only keeps the message of errors thrown inside coroutines
+    volatile Throwable failure;
+    //limits of the task between its slices, null until the first one
+    CycleLimiter.Session limits;
+    private volatile long instructions;
+    private volatile long slices;
+    private volatile long runNanos;
+
+    ScriptTask(CoroutineScheduler scheduler, LuaEvaluator evaluator, LuaValue function, String chunkName, int weight, long id) {
+        this.scheduler = scheduler;
+        this.evaluator = evaluator;
+        this.thread = new LuaThread(evaluator.getGlobals(), new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                //runs on the coroutine's own thread
+                LuaValue strings = StringMetatable.enter(evaluator.getStringLibrary());
+                try {
+                    return function.invoke(args);
+                } catch(RuntimeException e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    StringMetatable.exit(strings);
+                }
+            }
+        });
+        this.weight = weight;
+        this.id = id;
+        this.chunkName = chunkName;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public long getInstructions() {
+        return instructions;
+    }
+
+    public long getSlices() {
+        return slices;
+    }
+
+    public long getRunTime(TimeUnit unit) {
+        return unit.convert(runNanos, TimeUnit.NANOSECONDS);
+    }
+
+    //values passed to the last coroutine.yield of the script
+    public synchronized Varargs getYielded() {
+        return yielded;
+    }
+
+    //resumes a waiting task, the arguments are returned by its coroutine.yield. a wake arriving while the task
+    //is still running is kept for when it yields. returns false if the task already finished
+    public boolean wake(Object... args) {
+        LuaValue[] values = new LuaValue[args.length];
+        for(int i = 0; i < args.length; i++) {
+            values[i] = evaluator.toLua(args[i]);
+        }
+        Varargs v = LuaValue.varargsOf(values);
+        synchronized(this) {
+            switch(state) {
+                case WAITING:
+                    resumeArgs = v;
+                    state = State.READY;
+                    break;
+                case DONE:
+                    return false;
+                default:
+                    pendingWake = v;
+                    return true;
+            }
+        }
+        scheduler.enqueue(this, true);
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        //a running task stops at the next check of its limits, others never run again
+        if(cancelled) scheduler.finished(this);
+        return cancelled;
+    }
+
+    synchronized Varargs start() {
+        state = State.RUNNING;
+        Varargs v = resumeArgs;
+        resumeArgs = LuaValue.NONE;
+        return v;
+    }
+
+    synchronized void preempted() {
+        state = State.READY;
+    }
+
+    //returns true if the task must be queued again because a wake arrived while it ran
+    synchronized boolean yielded(Varargs values) {
+        yielded = values;
+        if(pendingWake != null) {
+            resumeArgs = pendingWake;
+            pendingWake = null;
+            state = State.READY;
+            return true;
+        }
+        state = State.WAITING;
+        return false;
+    }
+
+    //returns false if the task was already done
+    synchronized boolean done() {
+        if(state == State.DONE) return false;
+        state = State.DONE;
+        return true;
+    }
+
+    void account(long instructions, long nanos) {
+        //only the carrier running the task writes these
+        this.instructions += instructions;
+        this.slices++;
+        this.runNanos += nanos;
+    }
+
+    public enum State {
+        READY, RUNNING, WAITING, DONE
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.natanbc.luaeval;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.StringLib;
+import org.luaj.vm2.lib.TwoArgFunction;
+
+//method calls on strings, like ("x"):rep(n), are looked up in LuaString.s_metatable, which is shared by the whole jvm.
+//luaj points it at the string library of whichever globals loaded one first, so evaluators would call the (unlimited)
+//functions of another evaluator. the metatable installed here looks methods up in the string library of the evaluation
+//running on the current thread instead. lua functions called directly by java, outside of any evaluation, can't be tied
+//to their evaluator, so they get luaj's string library with rep capped to the smallest string length limit of every
+//evaluator built so far, a script handing a callback to java must not be able to escape its limit that way
+final class StringMetatable {
+    private static final ThreadLocal<LuaValue> CURRENT = new ThreadLocal<>();
+    private static volatile LuaValue fallback = library(0);
+    private static int fallbackLength;
+    private static final LuaTable METATABLE = new LuaTable();
+
+    static {
+        METATABLE.rawset(LuaValue.INDEX, new Index());
+        //shared by every evaluator, scripts must not be able to change it
+        METATABLE.rawset(LuaValue.METATABLE, LuaValue.FALSE);
+    }
+
+    private StringMetatable() {}
+
+    static synchronized void install(int maxStringLength) {
+        if(LuaString.s_metatable != METATABLE) LuaString.s_metatable = METATABLE;
+        if(maxStringLength > 0 && (fallbackLength == 0 || maxStringLength < fallbackLength)) {
+            fallbackLength = maxStringLength;
+            fallback = library(maxStringLength);
+        }
+    }
+
+    //returns the library used before, to be given back to exit
+    static LuaValue enter(LuaValue library) {
+        LuaValue previous = CURRENT.get();
+        CURRENT.set(library);
+        return previous;
+    }
+
+    static void exit(LuaValue previous) {
+        if(previous == null) CURRENT.remove();
+        else CURRENT.set(previous);
+    }
+
+    private static LuaValue library(int maxStringLength) {
+        Globals globals = new Globals();
+        globals.load(new PackageLib());
+        globals.load(LimitedLibrary.wrap(LuaLibrary.STRING, new StringLib(), maxStringLength, 0, null));
+        return globals.get("string");
+    }
+
+    private static class Index extends TwoArgFunction {
+        @Override
+        public LuaValue call(LuaValue string, LuaValue key) {
+            LuaValue library = CURRENT.get();
+            return (library == null ? fallback : library).get(key);
+        }
+    }
+}
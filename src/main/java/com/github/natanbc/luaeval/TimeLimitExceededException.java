@@ -0,0 +1,23 @@
+package com.github.natanbc.luaeval;
+
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings("unused")
+public class TimeLimitExceededException extends RuntimeException {
+    private final long limitNanos;
+    private final boolean cpuTime;
+
+    TimeLimitExceededException(long limitNanos, boolean cpuTime) {
+        super((cpuTime ? "CPU time" : "Time") + " limit of " + TimeUnit.NANOSECONDS.toMillis(limitNanos) + "ms exceeded");
+        this.limitNanos = limitNanos;
+        this.cpuTime = cpuTime;
+    }
+
+    public long getTimeLimit(TimeUnit unit) {
+        return unit.convert(limitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isCpuTime() {
+        return cpuTime;
+    }
+}
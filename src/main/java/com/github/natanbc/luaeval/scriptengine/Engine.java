@@ -1,45 +1,245 @@
 package com.github.natanbc.luaeval.scriptengine;
 
+import com.github.natanbc.luaeval.ChunkCache;
+import com.github.natanbc.luaeval.ChunkStore;
 import com.github.natanbc.luaeval.LuaEvaluator;
+import com.github.natanbc.luaeval.MetricsRecorder;
+import com.github.natanbc.luaeval.utils.LuaHelper;
 import com.github.natanbc.luaeval.utils.LuaObject;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.lib.jse.CoerceLuaToJava;
 
 import javax.script.AbstractScriptEngine;
 import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
 import javax.script.SimpleBindings;
 import java.io.IOException;
 import java.io.Reader;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class Engine extends AbstractScriptEngine {
+public class Engine extends AbstractScriptEngine implements Compilable, Invocable, AutoCloseable {
     @SuppressWarnings("WeakerAccess")
     public static final String ATTRIBUTE_MAX_CYCLES = "Lua.MAX_CYCLES";
 
     private final Factory factory;
+    //in thread isolated mode every thread has its own holder, otherwise they all share one
+    private final Holder shared;
+    private final ThreadLocal<Holder> threadHolder;
+    private final Set<Holder> holders = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<Thread> deadThreads = new ReferenceQueue<>();
+    private volatile MetricsRecorder metrics = MetricsRecorder.NONE;
+    private volatile ChunkStore chunkStore;
 
     Engine(Factory factory) {
         super(new SimpleBindings());
         this.factory = factory;
+        this.shared = factory.isThreadIsolated() ? null : new Holder(null, null);
+        this.threadHolder = factory.isThreadIsolated() ? ThreadLocal.withInitial(()->new Holder(Thread.currentThread(), deadThreads)) : null;
+    }
+
+    //gives the evaluators kept for Invocable back to the pool. objects obtained from the engine before stop working,
+    //unless they keep their evaluator out of the pool (see LuaEvaluator.markJavaReferences). the engine stays usable
+    @Override
+    public void close() {
+        if(shared != null) factory.getEvaluatorPool().release(shared.swap(null));
+        for(Holder holder : holders) {
+            holders.remove(holder);
+            factory.getEvaluatorPool().release(holder.swap(null));
+        }
+    }
+
+    public MetricsRecorder getMetrics() {
+        return metrics;
+    }
+
+    //applies to evaluators used from now on, they come from a shared pool
+    public Engine setMetrics(MetricsRecorder metrics) {
+        this.metrics = metrics == null ? MetricsRecorder.NONE : metrics;
+        LuaEvaluator evaluator = current();
+        if(evaluator != null) evaluator.setMetrics(this.metrics);
+        return this;
+    }
+
+    public ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    //like the metrics, applies to evaluators used from now on
+    public Engine setChunkStore(ChunkStore store) {
+        this.chunkStore = store;
+        LuaEvaluator evaluator = current();
+        if(evaluator != null) evaluator.setChunkStore(store);
+        return this;
     }
 
     @Override
     public Object eval(String script, ScriptContext context) throws ScriptException {
+        LuaEvaluator evaluator = createEvaluator(context);
+        return toJava(evaluator, evaluator.eval(script));
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return eval(read(reader), context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        try {
+            return new LuaCompiledScript(this, ChunkCache.getDefault().get(null, script, script, metrics, chunkStore), script);
+        } catch(LuaError e) {
+            throw new ScriptException(e);
+        }
+    }
+
+    @Override
+    public CompiledScript compile(Reader reader) throws ScriptException {
+        return compile(read(reader));
+    }
+
+    @Override
+    public Object invokeMethod(Object thiz, String name, Object... args) throws ScriptException, NoSuchMethodException {
+        Objects.requireNonNull(name, "name");
+        if(thiz == null) throw new IllegalArgumentException("thiz is null");
+        LuaEvaluator evaluator = getEvaluator();
+        LuaValue self = evaluator.toLua(thiz);
+        LuaValue f = self.get(name);
+        if(!f.isfunction()) throw new NoSuchMethodException(name);
+        return toJava(evaluator, evaluator.invoke(f, LuaValue.varargsOf(self, LuaValue.varargsOf(toLua(evaluator, args)))).arg1());
+    }
+
+    @Override
+    public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+        Objects.requireNonNull(name, "name");
+        LuaEvaluator evaluator = getEvaluator();
+        LuaValue f = evaluator.getGlobals().get(name);
+        if(!f.isfunction()) throw new NoSuchMethodException(name);
+        return toJava(evaluator, evaluator.invoke(f, LuaValue.varargsOf(toLua(evaluator, args))).arg1());
+    }
+
+    @Override
+    public <T> T getInterface(Class<T> clasz) {
+        return getInterface(getEvaluator(), getEvaluator().getGlobals(), clasz);
+    }
+
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> clasz) {
+        if(thiz == null) throw new IllegalArgumentException("thiz is null");
+        LuaValue v = getEvaluator().toLua(thiz);
+        if(!v.istable()) throw new IllegalArgumentException("thiz is not a lua table");
+        return getInterface(getEvaluator(), v, clasz);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        Bindings b = getBindings(ScriptContext.ENGINE_SCOPE);
+        if(b == null) setBindings(b = new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+        return b;
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    LuaEvaluator createEvaluator(ScriptContext context) {
         Object o = context.getAttribute(ATTRIBUTE_MAX_CYCLES);
         Bindings b = context.getBindings(ScriptContext.ENGINE_SCOPE);
-        LuaEvaluator evaluator = new LuaEvaluator(o instanceof Number ? ((Number)o).intValue() : -1);
+        EvaluatorPool pool = factory.getEvaluatorPool();
+        LuaEvaluator evaluator = pool.borrow(o instanceof Number ? ((Number)o).longValue() : -1);
+        evaluator.setMetrics(metrics);
+        evaluator.setChunkStore(chunkStore);
         b.forEach(evaluator::set);
-        LuaValue v = evaluator.eval(script);
+        //keep the state of the last evaluation around for Invocable, the previous one can go back to the pool
+        Holder holder = holder();
+        if(holder != shared) holders.add(holder);
+        pool.release(holder.swap(evaluator));
+        releaseDeadThreads(pool);
+        return evaluator;
+    }
+
+    private LuaEvaluator getEvaluator() {
+        LuaEvaluator evaluator = current();
+        if(evaluator == null) return createEvaluator(context);
+        return evaluator;
+    }
+
+    //in thread isolated mode, the evaluator of the last evaluation done by the calling thread
+    private LuaEvaluator current() {
+        return holder().evaluator();
+    }
+
+    private Holder holder() {
+        return threadHolder != null ? threadHolder.get() : shared;
+    }
+
+    //threads that won't evaluate anything again can't give their evaluators back themselves
+    private void releaseDeadThreads(EvaluatorPool pool) {
+        Holder holder;
+        while((holder = (Holder)deadThreads.poll()) != null) {
+            holders.remove(holder);
+            pool.release(holder.swap(null));
+        }
+    }
+
+    private static <T> T getInterface(LuaEvaluator evaluator, LuaValue methods, Class<T> clasz) {
+        if(clasz == null || !clasz.isInterface()) throw new IllegalArgumentException("Not an interface: " + clasz);
+        try {
+            return LuaHelper.implement(evaluator, clasz, methods.checktable());
+        } catch(LuaError e) {
+            return null;
+        }
+    }
+
+    private static LuaValue[] toLua(LuaEvaluator evaluator, Object[] args) {
+        if(args == null) return new LuaValue[0];
+        LuaValue[] v = new LuaValue[args.length];
+        for(int i = 0; i < v.length; i++) {
+            v[i] = evaluator.toLua(args[i]);
+        }
+        return v;
+    }
+
+    static Object toJava(LuaEvaluator evaluator, LuaValue v) {
         if(v instanceof LuaObject) {
             return ((LuaObject) v).getJavaObject();
         }
+        //tables and functions returned to the caller keep using the evaluator, so it must not go back to the pool
+        if(v.istable() || v.isfunction() || v.isthread()) evaluator.markJavaReferences();
         return CoerceLuaToJava.coerce(v, Object.class);
     }
 
-    @Override
-    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+    //refers to its thread weakly, so it's enqueued once the thread is gone
+    private static class Holder extends WeakReference<Thread> {
+        private LuaEvaluator evaluator;
+
+        Holder(Thread thread, ReferenceQueue<Thread> queue) {
+            super(thread, queue);
+        }
+
+        synchronized LuaEvaluator evaluator() {
+            return evaluator;
+        }
+
+        //returns the evaluator held before
+        synchronized LuaEvaluator swap(LuaEvaluator evaluator) {
+            LuaEvaluator previous = this.evaluator;
+            this.evaluator = evaluator;
+            return previous;
+        }
+    }
+
+    private static String read(Reader reader) throws ScriptException {
         try {
             char[] arr = new char[1024];
             StringBuilder buffer = new StringBuilder();
@@ -48,21 +248,9 @@ public class Engine extends AbstractScriptEngine {
                 buffer.append(arr, 0, numCharsRead);
             }
             reader.close();
-            return eval(buffer.toString(), context);
+            return buffer.toString();
         } catch(IOException e) {
             throw new ScriptException(e);
         }
     }
-
-    @Override
-    public Bindings createBindings() {
-        Bindings b = getBindings(ScriptContext.ENGINE_SCOPE);
-        if(b == null) setBindings(b = new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
-        return b;
-    }
-
-    @Override
-    public ScriptEngineFactory getFactory() {
-        return factory;
-    }
 }
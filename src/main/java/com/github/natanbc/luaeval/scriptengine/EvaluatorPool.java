@@ -0,0 +1,195 @@
+package com.github.natanbc.luaeval.scriptengine;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class EvaluatorPool {
+    private final ConcurrentMap<Long, Slot> slots = new ConcurrentHashMap<>();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder creations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder borrowNanos = new LongAdder();
+    private final AtomicLong maxBorrowNanos = new AtomicLong();
+    private volatile int maxIdle;
+    private volatile long maxIdleNanos;
+
+    public EvaluatorPool(int maxIdle, long maxIdleTime, TimeUnit unit) {
+        setMaxIdle(maxIdle);
+        setMaxIdleTime(maxIdleTime, unit);
+    }
+
+    public EvaluatorPool() {
+        this(8, 5, TimeUnit.MINUTES);
+    }
+
+    public EvaluatorPool setMaxIdle(int maxIdle) {
+        if(maxIdle < 0) throw new IllegalArgumentException("maxIdle < 0");
+        this.maxIdle = maxIdle;
+        return this;
+    }
+
+    public EvaluatorPool setMaxIdleTime(long time, TimeUnit unit) {
+        if(time <= 0) throw new IllegalArgumentException("time <= 0");
+        this.maxIdleNanos = unit.toNanos(time);
+        return this;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public long getMaxIdleTime(TimeUnit unit) {
+        return unit.convert(maxIdleNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public LuaEvaluator borrow(long cycleLimit) {
+        long start = System.nanoTime();
+        Slot slot = slot(cycleLimit);
+        LuaEvaluator evaluator = null;
+        Idle idle;
+        while((idle = slot.idle.pollFirst()) != null) {
+            slot.size.decrementAndGet();
+            if(start - idle.since > maxIdleNanos) {
+                evictions.increment();
+                continue;
+            }
+            evaluator = idle.evaluator;
+            break;
+        }
+        if(evaluator == null) evaluator = create(cycleLimit);
+        long time = System.nanoTime() - start;
+        borrows.increment();
+        borrowNanos.add(time);
+        maxBorrowNanos.accumulateAndGet(time, Math::max);
+        return evaluator;
+    }
+
+    //evaluators referenced from java code are left to the garbage collector, resetting them would break those references
+    public void release(LuaEvaluator evaluator) {
+        if(evaluator == null || evaluator.hasJavaReferences()) return;
+        evaluator.reset();
+        //idle evaluators shouldn't report to whoever used them last
+        evaluator.setMetrics(null);
+        evaluator.setChunkStore(null);
+        Slot slot = slot(evaluator.getCycleLimit());
+        if(slot.size.incrementAndGet() > maxIdle) {
+            slot.size.decrementAndGet();
+            evictions.increment();
+            return;
+        }
+        slot.idle.offerFirst(new Idle(evaluator, System.nanoTime()));
+        evictIdle(slot, System.nanoTime());
+    }
+
+    public EvaluatorPool prewarm(long cycleLimit, int count) {
+        Slot slot = slot(cycleLimit);
+        for(int i = 0; i < count; i++) {
+            if(slot.size.incrementAndGet() > maxIdle) {
+                slot.size.decrementAndGet();
+                break;
+            }
+            slot.idle.offerFirst(new Idle(create(cycleLimit), System.nanoTime()));
+        }
+        return this;
+    }
+
+    public int evictIdle() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for(Slot slot : slots.values()) {
+            evicted += evictIdle(slot, now);
+        }
+        return evicted;
+    }
+
+    public void clear() {
+        for(Slot slot : slots.values()) {
+            while(slot.idle.pollFirst() != null) {
+                slot.size.decrementAndGet();
+            }
+        }
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for(Slot slot : slots.values()) {
+            count += slot.size.get();
+        }
+        return count;
+    }
+
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    public long getCreatedCount() {
+        return creations.sum();
+    }
+
+    public long getEvictedCount() {
+        return evictions.sum();
+    }
+
+    public long getAverageBorrowTime(TimeUnit unit) {
+        long count = borrows.sum();
+        return count == 0 ? 0 : unit.convert(borrowNanos.sum() / count, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxBorrowTime(TimeUnit unit) {
+        return unit.convert(maxBorrowNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public void resetStats() {
+        borrows.reset();
+        creations.reset();
+        evictions.reset();
+        borrowNanos.reset();
+        maxBorrowNanos.set(0);
+    }
+
+    private int evictIdle(Slot slot, long now) {
+        int evicted = 0;
+        Idle idle;
+        //the deque is ordered most recently used first, so stale entries accumulate at the tail
+        while((idle = slot.idle.peekLast()) != null && now - idle.since > maxIdleNanos) {
+            if(slot.idle.removeLastOccurrence(idle)) {
+                slot.size.decrementAndGet();
+                evictions.increment();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private LuaEvaluator create(long cycleLimit) {
+        creations.increment();
+        return LuaEvaluator.builder().setCycleLimit(cycleLimit).setLazyLibraries(false).build().snapshot();
+    }
+
+    private Slot slot(long cycleLimit) {
+        return slots.computeIfAbsent(cycleLimit > 0 ? cycleLimit : -1L, ignored->new Slot());
+    }
+
+    private static class Slot {
+        final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<>();
+        final AtomicInteger size = new AtomicInteger();
+    }
+
+    private static class Idle {
+        final LuaEvaluator evaluator;
+        final long since;
+
+        Idle(LuaEvaluator evaluator, long since) {
+            this.evaluator = evaluator;
+            this.since = since;
+        }
+    }
+}
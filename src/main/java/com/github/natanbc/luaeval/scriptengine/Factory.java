@@ -9,6 +9,26 @@ import java.util.Collections;
 import java.util.List;
 
 public class Factory implements ScriptEngineFactory {
+    private final EvaluatorPool pool = new EvaluatorPool();
+    private final boolean threadIsolated;
+
+    //thread isolated engines can be shared by many threads, each of them evaluating with its own globals
+    public Factory(boolean threadIsolated) {
+        this.threadIsolated = threadIsolated;
+    }
+
+    public Factory() {
+        this(false);
+    }
+
+    public boolean isThreadIsolated() {
+        return threadIsolated;
+    }
+
+    public EvaluatorPool getEvaluatorPool() {
+        return pool;
+    }
+
     @Override
     public String getEngineName() {
         return "luaeval";
@@ -52,7 +72,8 @@ public class Factory implements ScriptEngineFactory {
             case "ScriptEngine.LANGUAGE": return getLanguageName();
             case "ScriptEngine.LANGUAGE_VERSION": return getLanguageVersion();
             case "ScriptEngine.NAME": return "luaeval";
-            case "THREADING": return null; //we are not thread safe
+            //evaluators are confined to a thread, compiled scripts and class bindings are immutable and shared
+            case "THREADING": return threadIsolated ? "THREAD-ISOLATED" : null;
         }
         return null;
     }
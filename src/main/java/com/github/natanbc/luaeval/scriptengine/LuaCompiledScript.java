@@ -0,0 +1,32 @@
+package com.github.natanbc.luaeval.scriptengine;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.luaj.vm2.Prototype;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+class LuaCompiledScript extends CompiledScript {
+    private final Engine engine;
+    private final Prototype prototype;
+    private final String chunkName;
+
+    LuaCompiledScript(Engine engine, Prototype prototype, String chunkName) {
+        this.engine = engine;
+        this.prototype = prototype;
+        this.chunkName = chunkName;
+    }
+
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        LuaEvaluator evaluator = engine.createEvaluator(context);
+        return Engine.toJava(evaluator, evaluator.eval(prototype, chunkName));
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+//a lua function handed to java code, eg by an implemented interface, that runs through LuaEvaluator.invoke
+//so it keeps the limits of its evaluator when java calls it later
+class BoundFunction extends LuaFunction {
+    private final LuaEvaluator evaluator;
+    private final LuaFunction function;
+
+    private BoundFunction(LuaEvaluator evaluator, LuaFunction function) {
+        this.evaluator = evaluator;
+        this.function = function;
+    }
+
+    static LuaFunction bind(LuaEvaluator evaluator, LuaFunction function) {
+        return function instanceof BoundFunction ? function : new BoundFunction(evaluator, function);
+    }
+
+    static LuaFunction[] bind(LuaEvaluator evaluator, LuaFunction[] functions) {
+        LuaFunction[] bound = new LuaFunction[functions.length];
+        for(int i = 0; i < bound.length; i++) {
+            bound[i] = bind(evaluator, functions[i]);
+        }
+        return bound;
+    }
+
+    @Override
+    public LuaValue call() {
+        return evaluator.invoke(function, NONE).arg1();
+    }
+
+    @Override
+    public LuaValue call(LuaValue arg) {
+        return evaluator.invoke(function, arg).arg1();
+    }
+
+    @Override
+    public LuaValue call(LuaValue arg1, LuaValue arg2) {
+        return evaluator.invoke(function, varargsOf(arg1, arg2)).arg1();
+    }
+
+    @Override
+    public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+        return evaluator.invoke(function, varargsOf(arg1, arg2, arg3)).arg1();
+    }
+
+    @Override
+    public Varargs invoke(Varargs args) {
+        return evaluator.invoke(function, args);
+    }
+
+    @Override
+    public String tojstring() {
+        return function.tojstring();
+    }
+}
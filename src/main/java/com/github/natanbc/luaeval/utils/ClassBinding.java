@@ -0,0 +1,137 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.AccessPolicy;
+import com.github.natanbc.luaeval.LuaIgnore;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class ClassBinding {
+    //slots of AccessPolicy.getBindingSlots. bindings are kept by the policy instance rather than in a global map,
+    //which would keep every policy (and the classes its blocked members belong to) alive through classes like String
+    private static final int INSTANCE = 0;
+    private static final int STATIC = 1;
+    private static final int CLASS_OBJECT = 2;
+    private static final int CONSTRUCTORS = 3;
+
+    final Class<?> type;
+    final boolean isArray;
+    final boolean isClassObject;
+    final boolean isBlocked;
+    private final Map<LuaValue, FieldAccessor> fields;
+    private final Map<LuaValue, MethodGroup> methods;
+
+    private ClassBinding(Class<?> type, boolean isStatic, boolean isClassObject, AccessPolicy policy) {
+        this.type = type;
+        this.isArray = type.isArray() && !isStatic;
+        this.isClassObject = isClassObject;
+        //the class verdict is folded into the binding, so wrapping only has to read a field
+        this.isBlocked = policy.isBlocked(type);
+        Map<LuaValue, FieldAccessor> fields = new HashMap<>();
+        for(Field f : type.getFields()) {
+            if(isStatic && !Modifier.isStatic(f.getModifiers())) continue;
+            if(policy.isBlocked(f)) continue;
+            setAccessible(f);
+            fields.putIfAbsent(LuaString.valueOf(f.getName()), FieldAccessor.of(f));
+        }
+        Map<String, List<Method>> map = new LinkedHashMap<>();
+        addMethods(map, type, isStatic, policy);
+        if(isClassObject) addMethods(map, Class.class, false, policy);
+        Map<LuaValue, MethodGroup> methods = new HashMap<>();
+        for(Map.Entry<String, List<Method>> e : map.entrySet()) {
+            methods.put(LuaString.valueOf(e.getKey()), new MethodGroup(e.getKey(), methods.size(), e.getValue()));
+        }
+        this.fields = Collections.unmodifiableMap(fields);
+        this.methods = Collections.unmodifiableMap(methods);
+    }
+
+    static ClassBinding of(Class<?> type, Object instance, AccessPolicy policy) {
+        int slot = instance == null ? STATIC : instance instanceof Class ? CLASS_OBJECT : INSTANCE;
+        AtomicReferenceArray<Object> slots = policy.getBindingSlots(type);
+        ClassBinding binding = (ClassBinding)slots.get(slot);
+        if(binding != null) return binding;
+        binding = new ClassBinding(type, slot == STATIC, slot == CLASS_OBJECT, policy);
+        //racing threads build equal bindings, the first one is kept
+        return slots.compareAndSet(slot, null, binding) ? binding : (ClassBinding)slots.get(slot);
+    }
+
+    static Overloads constructors(Class<?> type, AccessPolicy policy) {
+        AtomicReferenceArray<Object> slots = policy.getBindingSlots(type);
+        Overloads constructors = (Overloads)slots.get(CONSTRUCTORS);
+        if(constructors != null) return constructors;
+        List<Constructor<?>> list = new ArrayList<>();
+        if(!policy.isBlocked(type)) {
+            for(Constructor<?> c : type.getConstructors()) {
+                if(policy.isBlocked(c)) continue;
+                setAccessible(c);
+                list.add(c);
+            }
+        }
+        constructors = new Overloads(list);
+        return slots.compareAndSet(CONSTRUCTORS, null, constructors) ? constructors : (Overloads)slots.get(CONSTRUCTORS);
+    }
+
+    FieldAccessor field(LuaValue name) {
+        return fields.get(name);
+    }
+
+    MethodGroup methods(LuaValue name) {
+        return methods.get(name);
+    }
+
+    int methodCount() {
+        return methods.size();
+    }
+
+    private static void addMethods(Map<String, List<Method>> map, Class<?> type, boolean isStatic, AccessPolicy policy) {
+        for(Method m : type.getMethods()) {
+            if(m.getAnnotation(LuaIgnore.class) != null || policy.isBlocked(m)) continue;
+            if(isStatic && !Modifier.isStatic(m.getModifiers())) continue;
+            if(!setAccessible(m)) m = findAccessible(m);
+            map.computeIfAbsent(m.getName(), ignored->new ArrayList<>()).add(m);
+        }
+    }
+
+    static boolean setAccessible(AccessibleObject o) {
+        try {
+            o.setAccessible(true);
+            return true;
+        } catch(RuntimeException e) {
+            //members of packages that aren't open to us
+            return false;
+        }
+    }
+
+    //methods of non public classes (eg ArrayList$Itr) can still be called through a public supertype
+    private static Method findAccessible(Method m) {
+        if(Modifier.isPublic(m.getDeclaringClass().getModifiers())) return m;
+        Method found = findAccessible(m.getDeclaringClass(), m);
+        return found == null ? m : found;
+    }
+
+    private static Method findAccessible(Class<?> type, Method m) {
+        if(type == null) return null;
+        if(Modifier.isPublic(type.getModifiers())) {
+            try {
+                return type.getMethod(m.getName(), m.getParameterTypes());
+            } catch(NoSuchMethodException ignored) {}
+        }
+        for(Class<?> i : type.getInterfaces()) {
+            Method found = findAccessible(i, m);
+            if(found != null) return found;
+        }
+        return findAccessible(type.getSuperclass(), m);
+    }
+}
@@ -3,14 +3,32 @@ package com.github.natanbc.luaeval.utils;
 import com.github.natanbc.luaeval.ConversionHook;
 import com.github.natanbc.luaeval.LuaEvaluator;
 import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.OneArgFunction;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Supplier;
 
 public class EvaluatorGlobals extends Globals {
+    private static final LuaString PACKAGE = LuaString.valueOf("package");
+    private static final LuaString LOADED = LuaString.valueOf("loaded");
+    private static final LuaString PRELOAD = LuaString.valueOf("preload");
+
     final LuaEvaluator evaluator;
     final List<ConversionHook> hooks = new LinkedList<>();
+    WrapperCache wrappers;
+    private Map<LuaValue, Supplier<LuaValue>> lazyLibraries;
+    private Map<LuaTable, TableSnapshot> snapshot;
+    private List<ConversionHook> hooksSnapshot;
+    private Map<LuaValue, Supplier<LuaValue>> lazyLibrariesSnapshot;
 
     public EvaluatorGlobals(LuaEvaluator evaluator) {
         this.evaluator = evaluator;
@@ -21,4 +39,136 @@ public class EvaluatorGlobals extends Globals {
         hooks.add(hook);
         return this;
     }
+
+    public EvaluatorGlobals enableWrapperCache() {
+        if(wrappers == null) wrappers = new WrapperCache();
+        return this;
+    }
+
+    public EvaluatorGlobals loadLibrary(LuaValue library) {
+        //libraries register themselves in package.loaded, so give them a throwaway one if package isn't available
+        LuaTable tmp = null;
+        if(!rawget(PACKAGE).istable()) {
+            tmp = new LuaTable();
+            tmp.set(LOADED, new LuaTable());
+            super.rawset(PACKAGE, tmp);
+        }
+        try {
+            load(library);
+        } finally {
+            //the package library itself replaces it
+            if(tmp != null && rawget(PACKAGE) == tmp) super.rawset(PACKAGE, NIL);
+        }
+        return this;
+    }
+
+    public EvaluatorGlobals addLazyLibrary(String name, Supplier<LuaValue> library) {
+        Objects.requireNonNull(library);
+        LuaString key = LuaString.valueOf(name);
+        if(lazyLibraries == null) lazyLibraries = new HashMap<>();
+        lazyLibraries.put(key, library);
+        LuaValue p = rawget(PACKAGE);
+        if(p.istable()) p.get(PRELOAD).set(key, new LazyLoader(key));
+        return this;
+    }
+
+    @Override
+    public LuaValue get(LuaValue key) {
+        if(lazyLibraries != null) {
+            LuaValue v = rawget(key);
+            if(!v.isnil()) return v;
+            if(loadLazy(key)) return rawget(key);
+        }
+        return super.get(key);
+    }
+
+    @Override
+    public void rawset(LuaValue key, LuaValue value) {
+        //explicitly setting (or removing) a global cancels loading a library into it
+        if(lazyLibraries != null && lazyLibraries.remove(key) != null && lazyLibraries.isEmpty()) lazyLibraries = null;
+        super.rawset(key, value);
+    }
+
+    private boolean loadLazy(LuaValue key) {
+        Supplier<LuaValue> library = lazyLibraries.remove(key);
+        if(lazyLibraries.isEmpty()) lazyLibraries = null;
+        if(library == null) return false;
+        loadLibrary(library.get());
+        return true;
+    }
+
+    public EvaluatorGlobals snapshot() {
+        Map<LuaTable, TableSnapshot> map = new IdentityHashMap<>();
+        capture(this, map);
+        this.snapshot = map;
+        this.hooksSnapshot = new ArrayList<>(hooks);
+        this.lazyLibrariesSnapshot = lazyLibraries == null ? null : new HashMap<>(lazyLibraries);
+        return this;
+    }
+
+    public boolean hasSnapshot() {
+        return snapshot != null;
+    }
+
+    public EvaluatorGlobals restore() {
+        if(snapshot == null) throw new IllegalStateException("No snapshot taken");
+        lazyLibraries = null;
+        snapshot.forEach((table, s)->s.restore(table));
+        hooks.clear();
+        hooks.addAll(hooksSnapshot);
+        //scripts can store values in wrappers, which would leak into the next run
+        if(wrappers != null) wrappers.clear();
+        lazyLibraries = lazyLibrariesSnapshot == null ? null : new HashMap<>(lazyLibrariesSnapshot);
+        return this;
+    }
+
+    //walks every table reachable from the globals (library tables, package.loaded, ...) so they can be restored
+    //in place, keeping references held by library functions valid
+    private static void capture(LuaTable table, Map<LuaTable, TableSnapshot> map) {
+        if(map.containsKey(table)) return;
+        TableSnapshot s = new TableSnapshot(table);
+        map.put(table, s);
+        for(LuaValue v : s.values) {
+            if(v.istable() && !(v instanceof LuaObject)) capture((LuaTable)v, map);
+        }
+        if(s.metatable instanceof LuaTable) capture((LuaTable)s.metatable, map);
+    }
+
+    private class LazyLoader extends OneArgFunction {
+        private final LuaString name;
+
+        LazyLoader(LuaString name) {
+            this.name = name;
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg) {
+            return EvaluatorGlobals.this.get(name);
+        }
+    }
+
+    private static class TableSnapshot {
+        private final LuaValue[] keys;
+        private final LuaValue[] values;
+        private final LuaValue metatable;
+
+        TableSnapshot(LuaTable table) {
+            this.keys = table.keys();
+            this.values = new LuaValue[keys.length];
+            for(int i = 0; i < keys.length; i++) {
+                values[i] = table.rawget(keys[i]);
+            }
+            this.metatable = table.getmetatable();
+        }
+
+        void restore(LuaTable table) {
+            for(LuaValue k : table.keys()) {
+                table.rawset(k, LuaValue.NIL);
+            }
+            for(int i = 0; i < keys.length; i++) {
+                table.rawset(keys[i], values[i]);
+            }
+            table.setmetatable(metatable);
+        }
+    }
 }
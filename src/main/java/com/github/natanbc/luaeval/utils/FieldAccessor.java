@@ -0,0 +1,262 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.luaj.vm2.LuaBoolean;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaNumber;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+//typed getter/setter pair for a field, so primitive fields are read and written without boxing
+abstract class FieldAccessor {
+    final Field field;
+    final MethodHandle getter;
+    final MethodHandle setter;
+    private final boolean writable;
+
+    FieldAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+        this.field = field;
+        this.getter = getter;
+        this.setter = setter;
+        this.writable = !Modifier.isFinal(field.getModifiers());
+    }
+
+    abstract LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable;
+
+    abstract void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable;
+
+    final LuaValue read(LuaEvaluator evaluator, Object instance) {
+        try {
+            return get(evaluator, instance);
+        } catch(LuaError e) {
+            throw e;
+        } catch(Throwable t) {
+            throw new LuaError(t);
+        }
+    }
+
+    final void write(LuaEvaluator evaluator, Object instance, LuaValue value) {
+        if(!writable) throw new LuaError("Field " + field.getName() + " is final");
+        try {
+            set(evaluator, instance, value);
+        } catch(LuaError e) {
+            throw e;
+        } catch(Throwable t) {
+            throw new LuaError(t);
+        }
+    }
+
+    static FieldAccessor of(Field f) {
+        MethodHandle getter, setter;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            getter = lookup.unreflectGetter(f);
+            setter = Modifier.isFinal(f.getModifiers()) ? null : lookup.unreflectSetter(f);
+        } catch(IllegalAccessException | RuntimeException e) {
+            return new Reflective(f);
+        }
+        Class<?> type = f.getType();
+        if(Modifier.isStatic(f.getModifiers())) {
+            getter = MethodHandles.dropArguments(getter, 0, Object.class);
+            if(setter != null) setter = MethodHandles.dropArguments(setter, 0, Object.class);
+        }
+        getter = getter.asType(MethodType.methodType(type.isPrimitive() ? type : Object.class, Object.class));
+        if(setter != null) setter = setter.asType(MethodType.methodType(void.class, Object.class, type.isPrimitive() ? type : Object.class));
+        if(type == int.class) return new IntAccessor(f, getter, setter);
+        if(type == long.class) return new LongAccessor(f, getter, setter);
+        if(type == double.class) return new DoubleAccessor(f, getter, setter);
+        if(type == float.class) return new FloatAccessor(f, getter, setter);
+        if(type == short.class) return new ShortAccessor(f, getter, setter);
+        if(type == byte.class) return new ByteAccessor(f, getter, setter);
+        if(type == boolean.class) return new BooleanAccessor(f, getter, setter);
+        if(type == char.class) return new CharAccessor(f, getter, setter);
+        return new ObjectAccessor(f, getter, setter);
+    }
+
+    private static LuaNumber number(LuaValue value) {
+        if(!value.isnumber()) throw new LuaError("TypeError: number expected, got " + value.typename());
+        return value.checknumber();
+    }
+
+    private static class IntAccessor extends FieldAccessor {
+        IntAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, getter, setter);
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            return LuaNumber.valueOf((int)getter.invokeExact(instance));
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            setter.invokeExact(instance, number(value).toint());
+        }
+    }
+
+    private static class LongAccessor extends FieldAccessor {
+        LongAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, getter, setter);
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            return LuaInteger.valueOf((long)getter.invokeExact(instance));
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            setter.invokeExact(instance, number(value).tolong());
+        }
+    }
+
+    private static class DoubleAccessor extends FieldAccessor {
+        DoubleAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, getter, setter);
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            return LuaNumber.valueOf((double)getter.invokeExact(instance));
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            setter.invokeExact(instance, number(value).todouble());
+        }
+    }
+
+    private static class FloatAccessor extends FieldAccessor {
+        FloatAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, getter, setter);
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            return LuaNumber.valueOf((float)getter.invokeExact(instance));
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            setter.invokeExact(instance, number(value).tofloat());
+        }
+    }
+
+    private static class ShortAccessor extends FieldAccessor {
+        ShortAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, getter, setter);
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            return LuaNumber.valueOf((short)getter.invokeExact(instance));
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            setter.invokeExact(instance, number(value).toshort());
+        }
+    }
+
+    private static class ByteAccessor extends FieldAccessor {
+        ByteAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, getter, setter);
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            return LuaNumber.valueOf((byte)getter.invokeExact(instance));
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            setter.invokeExact(instance, number(value).tobyte());
+        }
+    }
+
+    private static class BooleanAccessor extends FieldAccessor {
+        BooleanAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, getter, setter);
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            return LuaBoolean.valueOf((boolean)getter.invokeExact(instance));
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            if(!value.isboolean()) throw new LuaError("TypeError: boolean expected, got " + value.typename());
+            setter.invokeExact(instance, value.toboolean());
+        }
+    }
+
+    private static class CharAccessor extends FieldAccessor {
+        CharAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, getter, setter);
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            return LuaString.valueOf(String.valueOf((char)getter.invokeExact(instance)));
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            if(!value.isstring() || value.tojstring().length() != 1) throw new LuaError("TypeError: single char string expected, got " + value.typename());
+            setter.invokeExact(instance, value.tojstring().charAt(0));
+        }
+    }
+
+    private static class ObjectAccessor extends FieldAccessor {
+        private final Class<?>[] type;
+
+        ObjectAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, getter, setter);
+            this.type = new Class<?>[]{field.getType()};
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            Object obj = (Object)getter.invokeExact(instance);
+            if(obj == null) return LuaValue.NIL;
+            if(obj instanceof LuaValue) return (LuaValue)obj;
+            return LuaHelper.toLua(evaluator, obj);
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            Object obj = LuaHelper.args(evaluator, false, type, new LuaValue[]{value})[0];
+            setter.invokeExact(instance, obj);
+        }
+    }
+
+    private static class Reflective extends FieldAccessor {
+        private final Class<?>[] type;
+
+        Reflective(Field field) {
+            super(field, null, null);
+            this.type = new Class<?>[]{field.getType()};
+        }
+
+        @Override
+        LuaValue get(LuaEvaluator evaluator, Object instance) throws Throwable {
+            Object obj = field.get(instance);
+            if(obj == null) return LuaValue.NIL;
+            if(obj instanceof LuaValue) return (LuaValue)obj;
+            return LuaHelper.toLua(evaluator, obj);
+        }
+
+        @Override
+        void set(LuaEvaluator evaluator, Object instance, LuaValue value) throws Throwable {
+            field.set(instance, LuaHelper.args(evaluator, false, type, new LuaValue[]{value})[0]);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.github.natanbc.luaeval.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//writes a final class implementing an interface, where method i converts its arguments to lua values, calls function i
+//of a LuaInterface.Dispatcher and converts the result back. the generated code has no branches, so no stack map frames
+//are needed
+class InterfaceGenerator {
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    private static final String PACKAGE = "com/github/natanbc/luaeval/utils/generated/";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DISPATCHER = LuaInterface.Dispatcher.class.getName().replace('.', '/');
+    private static final String DISPATCHER_DESC = "L" + DISPATCHER + ";";
+    private static final String LUA_VALUE = "org/luaj/vm2/LuaValue";
+    private static final String LUA_VALUE_DESC = "L" + LUA_VALUE + ";";
+    private static final String LUA_INTEGER = "org/luaj/vm2/LuaInteger";
+
+    private final Map<String, Integer> constants = new HashMap<>();
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private int poolSize = 1;
+
+    private InterfaceGenerator() {}
+
+    //whether a class defined in another class loader can implement the interface and link against every type it uses
+    static boolean canGenerate(Class<?> iface, Method[] methods) {
+        if(!isAccessible(iface)) return false;
+        for(Method m : methods) {
+            if(!isAccessible(m.getReturnType())) return false;
+            int slots = 1;
+            for(Class<?> c : m.getParameterTypes()) {
+                if(!isAccessible(c)) return false;
+                slots += c == long.class || c == double.class ? 2 : 1;
+            }
+            //locals are loaded with the single byte index forms
+            if(slots > 255) return false;
+        }
+        return true;
+    }
+
+    static Class<?> generate(Class<?> iface, Method[] methods) {
+        String name = PACKAGE + iface.getSimpleName() + "$LuaImpl" + COUNTER.incrementAndGet();
+        byte[] bytes = new InterfaceGenerator().write(name, iface, methods);
+        return new Loader(iface.getClassLoader()).define(name.replace('/', '.'), bytes);
+    }
+
+    private static boolean isAccessible(Class<?> c) {
+        while(c.isArray()) c = c.getComponentType();
+        if(c.isPrimitive()) return true;
+        for(Class<?> e = c; e != null; e = e.getEnclosingClass()) {
+            if(!Modifier.isPublic(e.getModifiers())) return false;
+        }
+        return true;
+    }
+
+    private byte[] write(String name, Class<?> iface, Method[] methods) {
+        try {
+            int thisClass = classRef(name);
+            int superClass = classRef(OBJECT);
+            int ifaceClass = classRef(internalName(iface));
+            int fieldName = utf8("d");
+            int fieldDesc = utf8(DISPATCHER_DESC);
+            int field = memberRef(9, name, "d", DISPATCHER_DESC);
+            int code = utf8("Code");
+
+            ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(methodBytes);
+            writeConstructor(out, superClass, field, code);
+            for(int i = 0; i < methods.length; i++) {
+                writeMethod(out, methods[i], i, field, code);
+            }
+            out.flush();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream cls = new DataOutputStream(bytes);
+            cls.writeInt(0xCAFEBABE);
+            cls.writeShort(0);
+            cls.writeShort(52);
+            pool.flush();
+            cls.writeShort(poolSize);
+            poolBytes.writeTo(cls);
+            cls.writeShort(Modifier.PUBLIC | Modifier.FINAL | 0x0020 /* ACC_SUPER */);
+            cls.writeShort(thisClass);
+            cls.writeShort(superClass);
+            cls.writeShort(1);
+            cls.writeShort(ifaceClass);
+            cls.writeShort(1);
+            cls.writeShort(Modifier.PRIVATE | Modifier.FINAL);
+            cls.writeShort(fieldName);
+            cls.writeShort(fieldDesc);
+            cls.writeShort(0);
+            cls.writeShort(methods.length + 1);
+            methodBytes.writeTo(cls);
+            cls.writeShort(0);
+            cls.flush();
+            return bytes.toByteArray();
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeConstructor(DataOutputStream out, int superClass, int field, int code) throws IOException {
+        int objectInit = memberRef(10, OBJECT, "<init>", "()V");
+        Code c = new Code();
+        c.op(0x2a); //aload_0
+        c.op(0xb7).u2(objectInit); //invokespecial Object.<init>
+        c.op(0x2a); //aload_0
+        c.op(0x2b); //aload_1
+        c.op(0xb5).u2(field); //putfield d
+        c.op(0xb1); //return
+        writeMethod(out, Modifier.PUBLIC, "<init>", "(" + DISPATCHER_DESC + ")V", code, 2, 2, c);
+    }
+
+    private void writeMethod(DataOutputStream out, Method m, int index, int field, int code) throws IOException {
+        Class<?>[] params = m.getParameterTypes();
+        Code c = new Code();
+        c.op(0x2a).op(0xb4).u2(field); //this.d
+        pushInt(c, index);
+        boolean spread = params.length > 3;
+        if(spread) {
+            pushInt(c, params.length);
+            c.op(0xbd).u2(classRef(LUA_VALUE)); //anewarray LuaValue
+        }
+        int slot = 1;
+        for(int i = 0; i < params.length; i++) {
+            if(spread) {
+                c.op(0x59); //dup
+                pushInt(c, i);
+            }
+            slot += toLua(c, params[i], slot, field);
+            if(spread) c.op(0x53); //aastore
+        }
+        StringBuilder callDesc = new StringBuilder("(I");
+        if(spread) {
+            callDesc.append('[').append(LUA_VALUE_DESC);
+        } else {
+            for(int i = 0; i < params.length; i++) callDesc.append(LUA_VALUE_DESC);
+        }
+        callDesc.append(')').append(LUA_VALUE_DESC);
+        c.op(0xb6).u2(memberRef(10, DISPATCHER, spread ? "invoke" : "call", callDesc.toString()));
+        fromLua(c, m.getReturnType(), index, field);
+        writeMethod(out, Modifier.PUBLIC, m.getName(), descriptor(m), code, 8, slot, c);
+    }
+
+    //converts the parameter in the given local slot, returns how many slots it uses
+    private int toLua(Code c, Class<?> type, int slot, int field) {
+        if(type == int.class || type == short.class || type == byte.class || type == char.class) {
+            c.op(0x15).u1(slot); //iload
+            c.op(0xb8).u2(memberRef(10, LUA_INTEGER, "valueOf", "(I)Lorg/luaj/vm2/LuaInteger;"));
+            return 1;
+        }
+        if(type == long.class) {
+            c.op(0x16).u1(slot); //lload
+            c.op(0xb8).u2(memberRef(10, LUA_INTEGER, "valueOf", "(J)Lorg/luaj/vm2/LuaNumber;"));
+            return 2;
+        }
+        if(type == float.class) {
+            c.op(0x17).u1(slot).op(0x8d); //fload, f2d
+            c.op(0xb8).u2(memberRef(10, LUA_VALUE, "valueOf", "(D)Lorg/luaj/vm2/LuaNumber;"));
+            return 1;
+        }
+        if(type == double.class) {
+            c.op(0x18).u1(slot); //dload
+            c.op(0xb8).u2(memberRef(10, LUA_VALUE, "valueOf", "(D)Lorg/luaj/vm2/LuaNumber;"));
+            return 2;
+        }
+        if(type == boolean.class) {
+            c.op(0x15).u1(slot); //iload
+            c.op(0xb8).u2(memberRef(10, LUA_VALUE, "valueOf", "(Z)Lorg/luaj/vm2/LuaBoolean;"));
+            return 1;
+        }
+        c.op(0x2a).op(0xb4).u2(field); //this.d
+        c.op(0x19).u1(slot); //aload
+        c.op(0xb6).u2(memberRef(10, DISPATCHER, "toLua", "(Ljava/lang/Object;)" + LUA_VALUE_DESC));
+        return 1;
+    }
+
+    private void fromLua(Code c, Class<?> type, int index, int field) {
+        if(type == void.class) {
+            c.op(0x57).op(0xb1); //pop, return
+            return;
+        }
+        if(type.isPrimitive()) {
+            String name = type.getName();
+            String method = "to" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            c.op(0xb8).u2(memberRef(10, DISPATCHER, method, "(" + LUA_VALUE_DESC + ")" + descriptor(type)));
+            if(type == long.class) c.op(0xad); //lreturn
+            else if(type == float.class) c.op(0xae); //freturn
+            else if(type == double.class) c.op(0xaf); //dreturn
+            else c.op(0xac); //ireturn
+            return;
+        }
+        c.op(0x2a).op(0xb4).u2(field).op(0x5f); //this.d, swap
+        pushInt(c, index);
+        c.op(0xb6).u2(memberRef(10, DISPATCHER, "toJava", "(" + LUA_VALUE_DESC + "I)Ljava/lang/Object;"));
+        if(type != Object.class) c.op(0xc0).u2(classRef(internalName(type))); //checkcast
+        c.op(0xb0); //areturn
+    }
+
+    private void pushInt(Code c, int value) {
+        if(value <= 5) c.op(0x03 + value); //iconst_n
+        else if(value <= Byte.MAX_VALUE) c.op(0x10).u1(value); //bipush
+        else c.op(0x11).u2(value); //sipush
+    }
+
+    private void writeMethod(DataOutputStream out, int access, String name, String desc, int code, int maxStack, int maxLocals, Code c) throws IOException {
+        out.writeShort(access);
+        out.writeShort(utf8(name));
+        out.writeShort(utf8(desc));
+        out.writeShort(1);
+        out.writeShort(code);
+        byte[] bytes = c.bytes.toByteArray();
+        out.writeInt(12 + bytes.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private int utf8(String value) {
+        return constant("U" + value, ()->{
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        });
+    }
+
+    private int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, ()->{
+            pool.writeByte(7);
+            pool.writeShort(name);
+        });
+    }
+
+    private int memberRef(int tag, String owner, String name, String desc) {
+        int cls = classRef(owner);
+        int n = utf8(name);
+        int d = utf8(desc);
+        int nameAndType = constant("N" + name + ":" + desc, ()->{
+            pool.writeByte(12);
+            pool.writeShort(n);
+            pool.writeShort(d);
+        });
+        return constant(tag + owner + "." + name + ":" + desc, ()->{
+            pool.writeByte(tag);
+            pool.writeShort(cls);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    private int constant(String key, PoolWriter writer) {
+        Integer index = constants.get(key);
+        if(index != null) return index;
+        try {
+            writer.write();
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        constants.put(key, poolSize);
+        return poolSize++;
+    }
+
+    private static String internalName(Class<?> c) {
+        return c.isArray() ? descriptor(c) : c.getName().replace('.', '/');
+    }
+
+    private static String descriptor(Method m) {
+        StringBuilder sb = new StringBuilder("(");
+        for(Class<?> c : m.getParameterTypes()) sb.append(descriptor(c));
+        return sb.append(')').append(descriptor(m.getReturnType())).toString();
+    }
+
+    private static String descriptor(Class<?> c) {
+        if(c == void.class) return "V";
+        if(c == boolean.class) return "Z";
+        if(c == byte.class) return "B";
+        if(c == short.class) return "S";
+        if(c == char.class) return "C";
+        if(c == int.class) return "I";
+        if(c == long.class) return "J";
+        if(c == float.class) return "F";
+        if(c == double.class) return "D";
+        if(c.isArray()) return c.getName().replace('.', '/');
+        return "L" + c.getName().replace('.', '/') + ";";
+    }
+
+    private interface PoolWriter {
+        void write() throws IOException;
+    }
+
+    private static class Code {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Code op(int op) {
+            bytes.write(op);
+            return this;
+        }
+
+        Code u1(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        Code u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+            return this;
+        }
+    }
+
+    //sees the interface through its own loader, and luaj and the dispatcher through ours
+    private static class Loader extends ClassLoader {
+        private static final ClassLoader OWN = InterfaceGenerator.class.getClassLoader();
+
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(name.startsWith("org.luaj.vm2.") || name.equals(LuaInterface.Dispatcher.class.getName())) {
+                return Class.forName(name, false, OWN);
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+}
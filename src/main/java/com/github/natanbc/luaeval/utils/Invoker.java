@@ -0,0 +1,84 @@
+package com.github.natanbc.luaeval.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+abstract class Invoker {
+    private static final MethodType GENERIC = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    //throws whatever the target throws, without wrapping it
+    abstract Object invoke(Object instance, Object[] args) throws Throwable;
+
+    //not cached here, the Overloads of each class binding keep theirs
+    static Invoker of(Method m) {
+        try {
+            MethodHandle h = MethodHandles.lookup().unreflect(m).asFixedArity();
+            if(Modifier.isStatic(m.getModifiers())) h = MethodHandles.dropArguments(h, 0, Object.class);
+            return new HandleInvoker(h.asSpreader(Object[].class, m.getParameterCount()).asType(GENERIC));
+        } catch(IllegalAccessException | RuntimeException e) {
+            return new ReflectiveMethodInvoker(m);
+        }
+    }
+
+    static Invoker of(Constructor<?> c) {
+        try {
+            MethodHandle h = MethodHandles.lookup().unreflectConstructor(c).asFixedArity();
+            h = MethodHandles.dropArguments(h, 0, Object.class);
+            return new HandleInvoker(h.asSpreader(Object[].class, c.getParameterCount()).asType(GENERIC));
+        } catch(IllegalAccessException | RuntimeException e) {
+            return new ReflectiveConstructorInvoker(c);
+        }
+    }
+
+    private static class HandleInvoker extends Invoker {
+        private final MethodHandle handle;
+
+        HandleInvoker(MethodHandle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        Object invoke(Object instance, Object[] args) throws Throwable {
+            return handle.invokeExact(instance, args);
+        }
+    }
+
+    private static class ReflectiveMethodInvoker extends Invoker {
+        private final Method method;
+
+        ReflectiveMethodInvoker(Method method) {
+            this.method = method;
+        }
+
+        @Override
+        Object invoke(Object instance, Object[] args) throws Throwable {
+            try {
+                return method.invoke(instance, args);
+            } catch(InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static class ReflectiveConstructorInvoker extends Invoker {
+        private final Constructor<?> constructor;
+
+        ReflectiveConstructorInvoker(Constructor<?> constructor) {
+            this.constructor = constructor;
+        }
+
+        @Override
+        Object invoke(Object instance, Object[] args) throws Throwable {
+            try {
+                return constructor.newInstance(args);
+            } catch(InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.luaj.vm2.LuaBoolean;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaNumber;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+//wraps a java array without copying it, each element type gets its own subclass so indexing never branches on the type
+abstract class LuaArray extends LuaObject {
+    private static final LuaString LENGTH = LuaString.valueOf("length");
+    private static final LuaString CLONE = LuaString.valueOf("clone");
+    private static final LuaString FILL = LuaString.valueOf("fill");
+    private static final LuaString COPY = LuaString.valueOf("copy");
+    private static final LuaString SUM = LuaString.valueOf("sum");
+    private static final LuaString SLICE = LuaString.valueOf("slice");
+
+    final int length;
+
+    LuaArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+        super(evaluator, array, binding);
+        this.length = Array.getLength(array);
+    }
+
+    static LuaArray of(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+        Class<?> type = array.getClass();
+        if(type == int[].class) return new IntArray(evaluator, array, binding);
+        if(type == long[].class) return new LongArray(evaluator, array, binding);
+        if(type == double[].class) return new DoubleArray(evaluator, array, binding);
+        if(type == float[].class) return new FloatArray(evaluator, array, binding);
+        if(type == short[].class) return new ShortArray(evaluator, array, binding);
+        if(type == byte[].class) return new ByteArray(evaluator, array, binding);
+        if(type == boolean[].class) return new BooleanArray(evaluator, array, binding);
+        if(type == char[].class) return new CharArray(evaluator, array, binding);
+        return new ObjectArray(evaluator, array, binding);
+    }
+
+    //0 based, callers check the bounds
+    abstract LuaValue at(int index);
+
+    abstract void put(int index, LuaValue value);
+
+    abstract void fill(int from, int to, LuaValue value);
+
+    LuaValue sum(int from, int to) {
+        throw new LuaError(typename() + " cannot be summed");
+    }
+
+    @Override
+    public LuaValue get(LuaValue key) {
+        if(key.isinttype()) {
+            int i = key.toint();
+            if(i >= 1 && i <= length) return at(i - 1);
+        } else if(key.type() == TSTRING) {
+            LuaValue v = member(key);
+            if(v != null) return v;
+        }
+        if(key.isnumber()) {
+            double d = key.todouble();
+            if(d % 1 == 0 && d >= 1 && d <= length) return at((int)d - 1);
+        }
+        return super.get(key);
+    }
+
+    @Override
+    public LuaValue get(int key) {
+        return rawget(key);
+    }
+
+    @Override
+    public LuaValue rawget(int key) {
+        //ipairs goes through here
+        if(key >= 1 && key <= length) return at(key - 1);
+        return super.rawget(key);
+    }
+
+    @Override
+    public void set(LuaValue key, LuaValue value) {
+        if(key.isinttype()) {
+            int i = key.toint();
+            if(i >= 1 && i <= length) {
+                put(i - 1, value);
+                return;
+            }
+        } else if(key.type() == TSTRING && key.raweq(LENGTH)) {
+            throw new LuaError("Java array length cannot be modified");
+        }
+        if(key.isnumber()) {
+            double d = key.todouble();
+            if(d % 1 == 0 && d >= 1 && d <= length) {
+                put((int)d - 1, value);
+                return;
+            }
+        }
+        super.set(key, value);
+    }
+
+    @Override
+    public void set(int key, LuaValue value) {
+        if(key >= 1 && key <= length) {
+            put(key - 1, value);
+            return;
+        }
+        super.set(key, value);
+    }
+
+    @Override
+    public LuaValue len() {
+        return LuaInteger.valueOf(length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public int rawlen() {
+        return length;
+    }
+
+    private LuaValue member(LuaValue key) {
+        if(key.raweq(LENGTH)) return LuaInteger.valueOf(length);
+        if(key.raweq(CLONE)) return new Bulk(this, Bulk.CLONE);
+        if(key.raweq(FILL)) return new Bulk(this, Bulk.FILL);
+        if(key.raweq(COPY)) return new Bulk(this, Bulk.COPY);
+        if(key.raweq(SUM)) return new Bulk(this, Bulk.SUM);
+        if(key.raweq(SLICE)) return new Bulk(this, Bulk.SLICE);
+        return null;
+    }
+
+    //1 based inclusive range from lua, checked and converted to a 0 based [from, to) range
+    private int[] range(Varargs args, int first) {
+        int from = args.optint(first, 1);
+        int to = args.optint(first + 1, length);
+        if(from < 1 || to > length || from > to + 1) {
+            throw new LuaError("Range [" + from + ", " + to + "] out of bounds for length " + length);
+        }
+        return new int[]{from - 1, to};
+    }
+
+    private LuaValue copyOf(int from, int to) {
+        Object copy = Array.newInstance(instance.getClass().getComponentType(), to - from);
+        System.arraycopy(instance, from, copy, 0, to - from);
+        return LuaHelper.coerce(evaluator, copy);
+    }
+
+    private static class Bulk extends VarArgFunction {
+        static final int CLONE = 0;
+        static final int FILL = 1;
+        static final int COPY = 2;
+        static final int SUM = 3;
+        static final int SLICE = 4;
+
+        private final LuaArray array;
+        private final int op;
+
+        Bulk(LuaArray array, int op) {
+            this.array = array;
+            this.op = op;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            switch(op) {
+                case CLONE:
+                    return array.copyOf(0, array.length);
+                case FILL: {
+                    int[] r = array.range(args, 2);
+                    array.fill(r[0], r[1], args.arg1());
+                    return array;
+                }
+                case COPY:
+                    return copy(args);
+                case SUM: {
+                    int[] r = array.range(args, 1);
+                    return array.sum(r[0], r[1]);
+                }
+                case SLICE: {
+                    int[] r = array.range(args, 1);
+                    return array.copyOf(r[0], r[1]);
+                }
+                default:
+                    throw new AssertionError(op);
+            }
+        }
+
+        //copy(from, to, n) moves n elements inside the array, copy(src, from, to, n) copies them from another array
+        private LuaValue copy(Varargs args) {
+            Object src = array.instance;
+            int i = 1;
+            if(args.arg1() instanceof LuaObject) {
+                src = ((LuaObject)args.arg1()).instance;
+                if(src == null || src.getClass() != array.instance.getClass()) {
+                    throw new LuaError("TypeError: " + array.typename() + " expected, got " + args.arg1().typename());
+                }
+                i = 2;
+            }
+            int from = args.checkint(i) - 1;
+            int to = args.checkint(i + 1) - 1;
+            int n = args.checkint(i + 2);
+            int srcLength = Array.getLength(src);
+            if(n < 0 || from < 0 || to < 0 || from + n > srcLength || to + n > array.length) {
+                throw new LuaError("Copy of " + n + " elements from " + (from + 1) + " to " + (to + 1) + " out of bounds");
+            }
+            System.arraycopy(src, from, array.instance, to, n);
+            return array;
+        }
+    }
+
+    private static class IntArray extends LuaArray {
+        private final int[] array;
+
+        IntArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+            super(evaluator, array, binding);
+            this.array = (int[])array;
+        }
+
+        @Override
+        LuaValue at(int index) {
+            return LuaInteger.valueOf(array[index]);
+        }
+
+        @Override
+        void put(int index, LuaValue value) {
+            array[index] = value.checknumber().toint();
+        }
+
+        @Override
+        void fill(int from, int to, LuaValue value) {
+            Arrays.fill(array, from, to, value.checknumber().toint());
+        }
+
+        @Override
+        LuaValue sum(int from, int to) {
+            long sum = 0;
+            for(int i = from; i < to; i++) sum += array[i];
+            return LuaInteger.valueOf(sum);
+        }
+    }
+
+    private static class LongArray extends LuaArray {
+        private final long[] array;
+
+        LongArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+            super(evaluator, array, binding);
+            this.array = (long[])array;
+        }
+
+        @Override
+        LuaValue at(int index) {
+            return LuaInteger.valueOf(array[index]);
+        }
+
+        @Override
+        void put(int index, LuaValue value) {
+            array[index] = value.checknumber().tolong();
+        }
+
+        @Override
+        void fill(int from, int to, LuaValue value) {
+            Arrays.fill(array, from, to, value.checknumber().tolong());
+        }
+
+        @Override
+        LuaValue sum(int from, int to) {
+            long sum = 0;
+            for(int i = from; i < to; i++) sum += array[i];
+            return LuaInteger.valueOf(sum);
+        }
+    }
+
+    private static class DoubleArray extends LuaArray {
+        private final double[] array;
+
+        DoubleArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+            super(evaluator, array, binding);
+            this.array = (double[])array;
+        }
+
+        @Override
+        LuaValue at(int index) {
+            return LuaNumber.valueOf(array[index]);
+        }
+
+        @Override
+        void put(int index, LuaValue value) {
+            array[index] = value.checknumber().todouble();
+        }
+
+        @Override
+        void fill(int from, int to, LuaValue value) {
+            Arrays.fill(array, from, to, value.checknumber().todouble());
+        }
+
+        @Override
+        LuaValue sum(int from, int to) {
+            double sum = 0;
+            for(int i = from; i < to; i++) sum += array[i];
+            return LuaNumber.valueOf(sum);
+        }
+    }
+
+    private static class FloatArray extends LuaArray {
+        private final float[] array;
+
+        FloatArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+            super(evaluator, array, binding);
+            this.array = (float[])array;
+        }
+
+        @Override
+        LuaValue at(int index) {
+            return LuaNumber.valueOf(array[index]);
+        }
+
+        @Override
+        void put(int index, LuaValue value) {
+            array[index] = value.checknumber().tofloat();
+        }
+
+        @Override
+        void fill(int from, int to, LuaValue value) {
+            Arrays.fill(array, from, to, value.checknumber().tofloat());
+        }
+
+        @Override
+        LuaValue sum(int from, int to) {
+            double sum = 0;
+            for(int i = from; i < to; i++) sum += array[i];
+            return LuaNumber.valueOf(sum);
+        }
+    }
+
+    private static class ShortArray extends LuaArray {
+        private final short[] array;
+
+        ShortArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+            super(evaluator, array, binding);
+            this.array = (short[])array;
+        }
+
+        @Override
+        LuaValue at(int index) {
+            return LuaInteger.valueOf(array[index]);
+        }
+
+        @Override
+        void put(int index, LuaValue value) {
+            array[index] = value.checknumber().toshort();
+        }
+
+        @Override
+        void fill(int from, int to, LuaValue value) {
+            Arrays.fill(array, from, to, value.checknumber().toshort());
+        }
+
+        @Override
+        LuaValue sum(int from, int to) {
+            long sum = 0;
+            for(int i = from; i < to; i++) sum += array[i];
+            return LuaInteger.valueOf(sum);
+        }
+    }
+
+    private static class ByteArray extends LuaArray {
+        private final byte[] array;
+
+        ByteArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+            super(evaluator, array, binding);
+            this.array = (byte[])array;
+        }
+
+        @Override
+        LuaValue at(int index) {
+            return LuaInteger.valueOf(array[index]);
+        }
+
+        @Override
+        void put(int index, LuaValue value) {
+            array[index] = value.checknumber().tobyte();
+        }
+
+        @Override
+        void fill(int from, int to, LuaValue value) {
+            Arrays.fill(array, from, to, value.checknumber().tobyte());
+        }
+
+        @Override
+        LuaValue sum(int from, int to) {
+            long sum = 0;
+            for(int i = from; i < to; i++) sum += array[i];
+            return LuaInteger.valueOf(sum);
+        }
+    }
+
+    private static class BooleanArray extends LuaArray {
+        private final boolean[] array;
+
+        BooleanArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+            super(evaluator, array, binding);
+            this.array = (boolean[])array;
+        }
+
+        @Override
+        LuaValue at(int index) {
+            return LuaBoolean.valueOf(array[index]);
+        }
+
+        @Override
+        void put(int index, LuaValue value) {
+            array[index] = value.checkboolean();
+        }
+
+        @Override
+        void fill(int from, int to, LuaValue value) {
+            Arrays.fill(array, from, to, value.checkboolean());
+        }
+    }
+
+    private static class CharArray extends LuaArray {
+        private final char[] array;
+
+        CharArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+            super(evaluator, array, binding);
+            this.array = (char[])array;
+        }
+
+        @Override
+        LuaValue at(int index) {
+            return LuaString.valueOf(String.valueOf(array[index]));
+        }
+
+        @Override
+        void put(int index, LuaValue value) {
+            array[index] = toChar(value);
+        }
+
+        @Override
+        void fill(int from, int to, LuaValue value) {
+            Arrays.fill(array, from, to, toChar(value));
+        }
+
+        private static char toChar(LuaValue value) {
+            if(value.checkstring().m_length != 1) throw new LuaError("TypeError: expected a single char, got multiple");
+            return value.tojstring().charAt(0);
+        }
+    }
+
+    private static class ObjectArray extends LuaArray {
+        private final Object[] array;
+        private final Class<?>[] type;
+
+        ObjectArray(LuaEvaluator evaluator, Object array, ClassBinding binding) {
+            super(evaluator, array, binding);
+            this.array = (Object[])array;
+            this.type = new Class<?>[]{array.getClass().getComponentType()};
+        }
+
+        @Override
+        LuaValue at(int index) {
+            Object obj = array[index];
+            if(obj == null) return NIL;
+            if(obj instanceof LuaValue) return (LuaValue)obj;
+            return LuaHelper.toLua(evaluator, obj);
+        }
+
+        @Override
+        void put(int index, LuaValue value) {
+            array[index] = LuaHelper.args(evaluator, false, type, new LuaValue[]{value})[0];
+        }
+
+        @Override
+        void fill(int from, int to, LuaValue value) {
+            Arrays.fill(array, from, to, LuaHelper.args(evaluator, false, type, new LuaValue[]{value})[0]);
+        }
+    }
+}
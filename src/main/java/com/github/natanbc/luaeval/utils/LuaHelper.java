@@ -1,29 +1,18 @@
 package com.github.natanbc.luaeval.utils;
 
 import com.github.natanbc.luaeval.LuaEvaluator;
-import com.github.natanbc.luaeval.LuaIgnore;
+import com.github.natanbc.luaeval.MetricsRecorder;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.VarArgFunction;
-import org.luaj.vm2.lib.ZeroArgFunction;
 import org.luaj.vm2.lib.jse.CoerceJavaToLua;
 import org.luaj.vm2.lib.jse.CoerceLuaToJava;
 
-import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 
 public class LuaHelper {
     static LuaValue toLua(LuaEvaluator evaluator, Object obj) {
@@ -32,6 +21,10 @@ public class LuaHelper {
         return v;
     }
 
+    public static <T> T implement(LuaEvaluator evaluator, Class<T> iface, LuaTable methods) {
+        return LuaInterface.implement(evaluator, iface, methods);
+    }
+
     static Object getInstance(LuaValue v, Class<?> type) {
         if(v instanceof LuaObject) {
             return ((LuaObject) v).instance;
@@ -40,102 +33,24 @@ public class LuaHelper {
     }
 
     public static LuaTable coerce(LuaEvaluator evaluator, Object obj) {
-        return coerce(evaluator, obj.getClass(), obj);
-    }
-
-    static LuaTable coerce(LuaEvaluator evaluator, Class<?> cls, Object obj) {
-        LuaObject object = new LuaObject(evaluator, obj, Arrays.stream(cls.getFields()).filter(f->obj != null || Modifier.isStatic(f.getModifiers())).toArray(Field[]::new));
-        if(obj != null && cls.isArray()) {
-            int length = Array.getLength(obj);
-            object.set("clone", new ZeroArgFunction() {
-                @Override
-                public LuaValue call() {
-                    Class<?> type = obj.getClass().getComponentType();
-                    Object newArray = Array.newInstance(type, length);
-                    for(int i = 0; i < length; i++) {
-                        Array.set(newArray, i, Array.get(obj, i));
-                    }
-                    return coerce(evaluator, type, newArray);
-                }
-            });
-        }
-        Map<String, List<Method>> map = new HashMap<>();
-        for(Method m : cls.getMethods()) {
-            if(m.getAnnotation(LuaIgnore.class) != null || evaluator.shouldBlockMethod(m)) continue;
-            if(obj == null && !Modifier.isStatic(m.getModifiers())) continue;
-            m.setAccessible(true);
-            map.computeIfAbsent(m.getName(), ignored->new LinkedList<>()).add(m);
+        //only wrappers using the runtime class are cached, the same object can also be viewed through other types
+        WrapperCache wrappers = ((EvaluatorGlobals)evaluator.getGlobals()).wrappers;
+        if(wrappers == null) return coerce(evaluator, obj.getClass(), obj);
+        LuaTable wrapper = wrappers.get(obj);
+        if(wrapper == null) {
+            wrapper = coerce(evaluator, obj.getClass(), obj);
+            wrappers.put(obj, wrapper);
         }
-        if(obj instanceof Class) {
-            object.set("new", new New(evaluator, (Class)obj));
-            for(Method m : Class.class.getMethods()) {
-                m.setAccessible(true);
-                map.computeIfAbsent(m.getName(), ignored->new LinkedList<>()).add(m);
-            }
-        }
-
-        map.forEach((name, methods)->object.set(name, coerce(evaluator, object, obj, methods)));
-
-        return object;
+        return wrapper;
     }
 
-    @SuppressWarnings("unchecked")
-    private static LuaFunction coerce(LuaEvaluator evaluator, LuaObject object, Object instance, List<Method> methods) {
-        Map<Method, Class[]> map = new HashMap<>();
-        for(Method m : methods) {
-            map.put(m, m.getParameterTypes());
-        }
-
-        return new VarArgFunction() {
-            @Override
-            public Varargs onInvoke(Varargs varargs) {
-                LuaValue[] array = new LuaValue[varargs.narg()];
-                for(int j = 0; j < array.length; j++) {
-                    array[j] = varargs.arg(j+1);
-                }
-                Object[] args = null;
-                Method method = null;
-                for(Map.Entry<Method, Class[]> entry : map.entrySet()) {
-                    if(entry.getValue().length != array.length) continue;
-                    try {
-                        args = args(evaluator, entry.getKey().isVarArgs(), entry.getValue(), array);
-                    } catch(LuaError e) {
-                        if(map.size() != 1) continue;
-                        throw e;
-                    }
-                    method = entry.getKey();
-                    break;
-                }
-                if(method == null) {
-                    for(Map.Entry<Method, Class[]> entry : map.entrySet()) {
-                        try {
-                            args = args(evaluator, entry.getKey().isVarArgs(), entry.getValue(), array);
-                        } catch(LuaError e) {
-                            continue;
-                        }
-                        method = entry.getKey();
-                        break;
-                    }
-                }
-                if(method == null) {
-                    throw new LuaError("No matching method found");
-                }
-                try {
-                    Object o = method.invoke(instance, args);
-                    if(o == instance && object != null) return object;
-                    if(o == null) return NIL;
-                    LuaValue v = CoerceJavaToLua.coerce(o);
-                    if(v.isuserdata()) {
-                        return coerce(evaluator, o);
-                    }
-                    return v;
-                } catch(InvocationTargetException e) {
-                    throw new LuaError(e.getCause());
-                } catch(Exception e) {
-                    throw new LuaError(e);
-                }
-            }
-        };
+    static LuaTable coerce(LuaEvaluator evaluator, Class<?> cls, Object obj) {
+        if(obj != null && obj.getClass().isArray()) cls = obj.getClass();
+        ClassBinding binding = ClassBinding.of(cls, obj, evaluator.getAccessPolicy());
+        if(binding.isBlocked) throw new LuaError("Access to " + cls.getName() + " is blocked");
+        evaluator.getMetrics().onWrap(cls);
+        if(binding.isArray) return LuaArray.of(evaluator, obj, binding);
+        return new LuaObject(evaluator, obj, binding);
     }
 
     static Object[] args(LuaEvaluator evaluator, boolean isVarargs, Class<?>[] argTypes, LuaValue[] v) {
@@ -156,7 +71,18 @@ public class LuaHelper {
                 else if(cls == double.class) a[i] = (double)0;
             } else {
                 LuaValue value = v[i];
-                if(cls == boolean.class) {
+                if(isVarargs && i == argTypes.length - 1 && !(v.length == argTypes.length && isArray(cls, value))) {
+                    Class<?> type = cls.getComponentType();
+                    Class<?>[] c = new Class[v.length-i];
+                    Arrays.fill(c, type);
+                    LuaValue[] array = Arrays.copyOfRange(v, i, v.length);
+                    Object[] o = args(evaluator, false, c, array);
+                    Object jArray = Array.newInstance(type, o.length);
+                    for(int j = 0; j < o.length; j++) {
+                        Array.set(jArray, j, o[j]);
+                    }
+                    a[i] = jArray;
+                } else if(cls == boolean.class) {
                     if(!value.isboolean()) throw new LuaError("TypeError: boolean expected, got " + value.typename());
                     a[i] = value.toboolean();
                 } else if(cls == byte.class || cls == short.class || cls == int.class || cls == float.class || cls == long.class || cls == double.class) {
@@ -205,6 +131,7 @@ public class LuaHelper {
                             throw new LuaError("TypeError: " + cls.getName() + " expected, got " + value.typename());
                         }
                     } else if(cls == Object.class) {
+                        if(value.istable() || value.isfunction() || value.isthread()) evaluator.markJavaReferences();
                         a[i] = CoerceLuaToJava.coerce(value, Object.class);
                     } else if(cls.isArray() && value.istable()) {
                         Class<?> type = cls.getComponentType();
@@ -221,17 +148,6 @@ public class LuaHelper {
                             Array.set(jArray, j, o[j]);
                         }
                         a[i] = jArray;
-                    } else if(cls.isArray() && (isVarargs && i == argTypes.length -1)) {
-                        Class<?> type = cls.getComponentType();
-                        Class<?>[] c = new Class[v.length-i];
-                        Arrays.fill(c, type);
-                        LuaValue[] array = Arrays.copyOfRange(v, i, v.length);
-                        Object[] o = args(evaluator, false, c, array);
-                        Object jArray = Array.newInstance(type, o.length);
-                        for(int j = 0; j < o.length; j++) {
-                            Array.set(jArray, j, o[j]);
-                        }
-                        a[i] = jArray;
                     } else if(LuaLambda.isLambda(cls) && value.isfunction()) {
                         a[i] = LuaLambda.toLambda(evaluator, cls, (LuaFunction)value);
                     } else if(!value.isnil()) {
@@ -245,14 +161,19 @@ public class LuaHelper {
         return a;
     }
 
-    private static class New extends VarArgFunction {
+    //whether a value can be passed as is to a varargs parameter
+    private static boolean isArray(Class<?> cls, LuaValue value) {
+        if(value instanceof LuaObject) return cls.isInstance(((LuaObject) value).instance);
+        return value.istable();
+    }
+
+    static class New extends VarArgFunction {
         private final LuaEvaluator evaluator;
-        private final Constructor<?>[] constructors;
+        private final Overloads constructors;
 
         New(LuaEvaluator evaluator, Class<?> cls) {
             this.evaluator = evaluator;
-            this.constructors = cls.getConstructors();
-            AccessibleObject.setAccessible(constructors, true);
+            this.constructors = ClassBinding.constructors(cls, evaluator.getAccessPolicy());
         }
 
         @Override
@@ -261,49 +182,23 @@ public class LuaHelper {
             for(int i = 0; i < v.length; i++) {
                 v[i] = args.arg(i+1);
             }
-            Constructor<?> constructor = null;
-            Object[] a = null;
-            for(Constructor<?> ctor : constructors) {
-                if(evaluator.shouldBlockConstructor(ctor)) continue;
-                Class<?>[] argTypes = ctor.getParameterTypes();
-                if(argTypes.length != v.length) continue;
-                try {
-                    a = args(evaluator, ctor.isVarArgs(), argTypes, v);
-                } catch(LuaError e) {
-                    if(constructors.length != 1) continue;
-                    throw e;
-                }
-                constructor = ctor;
-                break;
-            }
-
-            if(constructor == null) {
-                for(Constructor<?> ctor : constructors) {
-                    if(evaluator.shouldBlockConstructor(ctor)) continue;
-                    Class<?>[] argTypes = ctor.getParameterTypes();
-                    a = args(evaluator, ctor.isVarArgs(), argTypes, v);
-                    constructor = ctor;
-                    break;
-                }
-            }
-
-            if(constructor == null) {
+            MetricsRecorder metrics = evaluator.getMetrics();
+            int index = constructors.size() == 0 ? Overloads.NO_MATCH : constructors.resolve(v, metrics);
+            if(index == Overloads.NO_MATCH) {
                 throw new LuaError("No matching constructor found");
             }
+            metrics.onJavaCall(constructors.members[index]);
+            Object[] a = args(evaluator, constructors.isVarArgs(index), constructors.parameterTypes[index], v);
 
+            Object instance;
             try {
-                return varargsOf(new LuaValue[] {LuaHelper.coerce(evaluator, constructor.newInstance(a))});
-            } catch(IllegalAccessException e) {
-                throw new AssertionError();
-            } catch(InvocationTargetException e) {
-                LuaError error = new LuaError(e.getCause().toString());
-                error.setStackTrace(e.getCause().getStackTrace());
-                throw error;
-            } catch(InstantiationException e) {
-                LuaError error = new LuaError(e.toString());
-                error.setStackTrace(e.getStackTrace());
+                instance = constructors.invokers[index].invoke(null, a);
+            } catch(Throwable t) {
+                LuaError error = new LuaError(t.toString());
+                error.setStackTrace(t.getStackTrace());
                 throw error;
             }
+            return varargsOf(new LuaValue[] {LuaHelper.coerce(evaluator, instance)});
         }
     }
 }
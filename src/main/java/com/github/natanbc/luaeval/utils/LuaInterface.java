@@ -1,118 +1,345 @@
 package com.github.natanbc.luaeval.utils;
 
 import com.github.natanbc.luaeval.LuaEvaluator;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 class LuaInterface {
-    @SuppressWarnings("unchecked")
+    //generated implementations are shared by every evaluator, one class per interface and set of implemented methods
+    private static final ClassValue<Shape> SHAPES = new ClassValue<Shape>() {
+        @Override
+        protected Shape computeValue(Class<?> type) {
+            return new Shape(type);
+        }
+    };
+
     static <T> T implement(LuaEvaluator evaluator, Class<T> clazz, LuaTable methodTable, Method... methods) {
-        Map<MethodReference, LuaFunction> map = new HashMap<>();
+        Map<Method, LuaFunction> map = new LinkedHashMap<>();
         for(Method m : methods) {
             LuaValue v = methodTable.get(m.getName());
             if(!v.isfunction()) {
-                if(m.isDefault()) {
+                if(m.isDefault() || isObjectMethod(m)) {
                     continue;
                 } else {
                     LuaValue.error("No implementation defined for method " + m.getName());
                 }
             }
-            map.put(new MethodReference(m), (LuaFunction)v);
+            map.put(m, (LuaFunction)v);
         }
 
-        return (T) Proxy.newProxyInstance(evaluator.getClassLoader(), new Class[]{clazz}, new Handler(evaluator, map));
+        return implement(evaluator, clazz, map.keySet().toArray(new Method[0]), map.values().toArray(new LuaFunction[0]));
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T implement(LuaEvaluator evaluator, Class<T> clazz, Method[] implemented, LuaFunction[] functions) {
+        evaluator.markJavaReferences();
+        functions = BoundFunction.bind(evaluator, functions);
+        if(evaluator.isGeneratedInterfaces() && clazz.isInterface()) {
+            Template template = SHAPES.get(clazz).template(implemented);
+            if(template != null) {
+                return (T)template.newInstance(new Dispatcher(evaluator, functions, template.converters));
+            }
+        }
+        return (T) Proxy.newProxyInstance(evaluator.getClassLoader(), new Class[]{clazz}, new Handler(evaluator, SHAPES.get(clazz), implemented, functions));
     }
 
     static <T> T implement(LuaEvaluator evaluator, Class<T> clazz, LuaTable methodTable) {
-        return implement(evaluator, clazz, methodTable, getUnimplementedMethods(clazz));
+        return implement(evaluator, clazz, methodTable, SHAPES.get(clazz).methods);
+    }
+
+    //methods like Comparator.equals are redeclared by interfaces but already implemented by every object
+    private static boolean isObjectMethod(Method m) {
+        try {
+            Object.class.getMethod(m.getName(), m.getParameterTypes());
+            return true;
+        } catch(NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    static Converter converter(Class<?> type) {
+        if(type == void.class) return v->null;
+        if(type == boolean.class || type == Boolean.class) return Dispatcher::toBoolean;
+        if(type == char.class || type == Character.class) return Dispatcher::toChar;
+        if(type == byte.class || type == Byte.class) return Dispatcher::toByte;
+        if(type == short.class || type == Short.class) return Dispatcher::toShort;
+        if(type == int.class || type == Integer.class) return Dispatcher::toInt;
+        if(type == float.class || type == Float.class) return Dispatcher::toFloat;
+        if(type == long.class || type == Long.class) return Dispatcher::toLong;
+        if(type == double.class || type == Double.class) return Dispatcher::toDouble;
+        return v->LuaHelper.getInstance(v, type);
     }
 
-    private static Method[] getUnimplementedMethods(Class<?> clazz) {
-        return Arrays.stream(clazz.getMethods()).filter(m->!Modifier.isStatic(m.getModifiers())).toArray(Method[]::new);
+    interface Converter {
+        Object convert(LuaValue value);
+    }
+
+    //called by the generated classes, which live in their own class loader and can only link against public members
+    public static final class Dispatcher {
+        private final LuaEvaluator evaluator;
+        private final LuaFunction[] functions;
+        private final Converter[] converters;
+
+        Dispatcher(LuaEvaluator evaluator, LuaFunction[] functions, Converter[] converters) {
+            this.evaluator = evaluator;
+            this.functions = functions;
+            this.converters = converters;
+        }
+
+        public LuaValue call(int index) {
+            return functions[index].call();
+        }
+
+        public LuaValue call(int index, LuaValue arg) {
+            return functions[index].call(arg);
+        }
+
+        public LuaValue call(int index, LuaValue arg1, LuaValue arg2) {
+            return functions[index].call(arg1, arg2);
+        }
+
+        public LuaValue call(int index, LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+            return functions[index].call(arg1, arg2, arg3);
+        }
+
+        public LuaValue invoke(int index, LuaValue[] args) {
+            return functions[index].invoke(args).arg1();
+        }
+
+        public LuaValue toLua(Object obj) {
+            return LuaHelper.toLua(evaluator, obj);
+        }
+
+        public Object toJava(LuaValue value, int index) {
+            return converters[index].convert(value);
+        }
+
+        public static boolean toBoolean(LuaValue v) {
+            return v.isboolean() ? v.toboolean() : !v.isnil();
+        }
+
+        public static char toChar(LuaValue v) {
+            return v.tochar();
+        }
+
+        public static byte toByte(LuaValue v) {
+            return v.checknumber().tobyte();
+        }
+
+        public static short toShort(LuaValue v) {
+            return v.checknumber().toshort();
+        }
+
+        public static int toInt(LuaValue v) {
+            return v.checknumber().toint();
+        }
+
+        public static float toFloat(LuaValue v) {
+            return v.checknumber().tofloat();
+        }
+
+        public static long toLong(LuaValue v) {
+            return v.checknumber().tolong();
+        }
+
+        public static double toDouble(LuaValue v) {
+            return v.checknumber().todouble();
+        }
     }
 
     public static class Handler implements InvocationHandler {
         private final LuaEvaluator evaluator;
-        private final Map<MethodReference, LuaFunction> functions;
+        private final Shape shape;
+        //position in the shape -> implemented method, -1 for the ones lua doesn't implement
+        private final int[] slots;
+        private final LuaFunction[] functions;
+        private final Converter[] converters;
 
-        Handler(LuaEvaluator evaluator, Map<MethodReference, LuaFunction> functions) {
+        Handler(LuaEvaluator evaluator, Shape shape, Method[] methods, LuaFunction[] functions) {
             this.evaluator = evaluator;
+            this.shape = shape;
+            this.slots = new int[shape.methods.length];
             this.functions = functions;
+            this.converters = new Converter[methods.length];
+            Arrays.fill(slots, -1);
+            for(int i = 0; i < methods.length; i++) {
+                int slot = shape.index(methods[i]);
+                if(slot >= 0) slots[slot] = i;
+                converters[i] = converter(methods[i].getReturnType());
+            }
         }
 
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            MethodReference r = new MethodReference(method);
-            LuaFunction f = functions.get(r);
-            if(f == null) return method.invoke(proxy, args);
+            int slot = shape.index(method);
+            int index = slot < 0 ? -1 : slots[slot];
+            if(index < 0) {
+                if(method.getDeclaringClass() == Object.class) {
+                    switch(method.getName()) {
+                        case "equals": return proxy == args[0];
+                        case "hashCode": return System.identityHashCode(proxy);
+                        case "toString": return proxy.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                    }
+                }
+                if(method.isDefault()) return shape.invokeDefault(proxy, method, args);
+                throw new UnsupportedOperationException(method.toString());
+            }
             if(args == null) args = new Object[0];
             LuaValue[] luaArgs = new LuaValue[args.length];
             for(int i = 0; i < luaArgs.length; i++) {
                 luaArgs[i] = LuaHelper.toLua(evaluator, args[i]);
             }
-            LuaValue obj = f.invoke(luaArgs).arg1();
-            Class<?> retType = method.getReturnType();
-            if(retType == void.class) return null;
-            switch(retType.getName()) {
-                case "boolean":
-                case "java.lang.Boolean":
-                    return obj.isboolean() ? obj.toboolean() : !obj.isnil();
-                case "char":
-                case "java.lang.Character":
-                    return obj.tochar();
-                case "byte":
-                case "java.lang.Byte":
-                    return obj.checknumber().tobyte();
-                case "short":
-                case "java.lang.Short":
-                    return obj.checknumber().toshort();
-                case "int":
-                case "java.lang.Integer":
-                    return obj.checknumber().toint();
-                case "float":
-                case "java.lang.Float":
-                    return obj.checknumber().tofloat();
-                case "long":
-                case "java.lang.Long":
-                    return obj.checknumber().tolong();
-                case "double":
-                case "java.lang.Double":
-                    return obj.checknumber().todouble();
+            return converters[index].convert(functions[index].invoke(luaArgs).arg1());
+        }
+    }
+
+    private static String signature(Method m) {
+        return m.getName() + MethodType.methodType(m.getReturnType(), m.getParameterTypes()).toMethodDescriptorString();
+    }
+
+    private static class Shape {
+        //java 16+, calls default methods of any proxy interface
+        private static final MethodHandle INVOKE_DEFAULT = findInvokeDefault();
+
+        final Class<?> type;
+        final Method[] methods;
+        //methods are matched by name and descriptor, the same method can be declared by several superinterfaces
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final ConcurrentMap<Method, Integer> resolved = new ConcurrentHashMap<>();
+        private final ConcurrentMap<BitSet, Template> templates = new ConcurrentHashMap<>();
+        private final ConcurrentMap<Method, MethodHandle> defaults = new ConcurrentHashMap<>();
+
+        Shape(Class<?> type) {
+            this.type = type;
+            //one entry per signature, getMethods() repeats methods inherited through several interfaces
+            Map<String, Method> unique = new LinkedHashMap<>();
+            for(Method m : type.getMethods()) {
+                if(Modifier.isStatic(m.getModifiers())) continue;
+                unique.putIfAbsent(m.getName() + Arrays.toString(m.getParameterTypes()) + m.getReturnType().getName(), m);
+            }
+            List<Method> list = new ArrayList<>(unique.values());
+            list.sort(Comparator.comparing(Method::toGenericString));
+            this.methods = list.toArray(new Method[0]);
+            for(int i = 0; i < methods.length; i++) {
+                indexes.put(signature(methods[i]), i);
+            }
+        }
+
+        int index(Method m) {
+            Integer index = resolved.get(m);
+            if(index == null) {
+                index = indexes.getOrDefault(signature(m), -1);
+                resolved.put(m, index);
+            }
+            return index;
+        }
+
+        Template template(Method[] implemented) {
+            BitSet key = new BitSet(methods.length);
+            for(Method m : implemented) {
+                int index = index(m);
+                if(index < 0) return null;
+                key.set(index);
+            }
+            Template template = templates.get(key);
+            if(template == null) template = templates.computeIfAbsent(key, k->Template.create(type, implemented));
+            return template == Template.UNSUPPORTED ? null : template;
+        }
+
+        Object invokeDefault(Object proxy, Method method, Object[] args) throws Throwable {
+            if(args == null) args = new Object[0];
+            if(INVOKE_DEFAULT != null) return (Object)INVOKE_DEFAULT.invokeExact(proxy, method, args);
+            MethodHandle h = defaults.get(method);
+            if(h == null) h = defaults.computeIfAbsent(method, Shape::findDefault);
+            return h.bindTo(proxy).invokeWithArguments(args);
+        }
+
+        private static MethodHandle findInvokeDefault() {
+            try {
+                return MethodHandles.lookup().findStatic(InvocationHandler.class, "invokeDefault",
+                        MethodType.methodType(Object.class, Object.class, Method.class, Object[].class));
+            } catch(ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        //java 8 needs a lookup with private access to the interface, 9 to 15 have privateLookupIn
+        private static MethodHandle findDefault(Method method) {
+            Class<?> declaring = method.getDeclaringClass();
+            try {
+                MethodHandles.Lookup lookup;
+                try {
+                    Method privateLookupIn = MethodHandles.class.getMethod("privateLookupIn", Class.class, MethodHandles.Lookup.class);
+                    lookup = (MethodHandles.Lookup)privateLookupIn.invoke(null, declaring, MethodHandles.lookup());
+                } catch(NoSuchMethodException e) {
+                    Constructor<MethodHandles.Lookup> c = MethodHandles.Lookup.class.getDeclaredConstructor(Class.class, int.class);
+                    c.setAccessible(true);
+                    lookup = c.newInstance(declaring, MethodHandles.Lookup.PRIVATE);
+                }
+                return lookup.unreflectSpecial(method, declaring);
+            } catch(ReflectiveOperationException | RuntimeException e) {
+                throw new UnsupportedOperationException("Cannot call default method " + method, e);
             }
-            return LuaHelper.getInstance(obj, retType);
         }
     }
 
-    public static class MethodReference {
-        private final String name;
-        private final Class<?>[] params;
+    private static class Template {
+        static final Template UNSUPPORTED = new Template(null, null);
+
+        final MethodHandle constructor;
+        final Converter[] converters;
 
-        MethodReference(Method method) {
-            this.name = method.getName();
-            this.params = method.getParameterTypes();
+        private Template(MethodHandle constructor, Converter[] converters) {
+            this.constructor = constructor;
+            this.converters = converters;
         }
 
-        @Override
-        public int hashCode() {
-            return name.hashCode() ^ Arrays.hashCode(params);
+        static Template create(Class<?> type, Method[] methods) {
+            if(!InterfaceGenerator.canGenerate(type, methods)) return UNSUPPORTED;
+            Class<?> cls = InterfaceGenerator.generate(type, methods);
+            Converter[] converters = new Converter[methods.length];
+            for(int i = 0; i < methods.length; i++) {
+                converters[i] = converter(methods[i].getReturnType());
+            }
+            try {
+                MethodHandle constructor = MethodHandles.publicLookup()
+                        .findConstructor(cls, MethodType.methodType(void.class, Dispatcher.class))
+                        .asType(MethodType.methodType(Object.class, Dispatcher.class));
+                return new Template(constructor, converters);
+            } catch(ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if(obj instanceof MethodReference) {
-                MethodReference r = (MethodReference)obj;
-                return name.equals(r.name) && Arrays.equals(params, r.params);
+        Object newInstance(Dispatcher dispatcher) {
+            try {
+                return (Object)constructor.invokeExact(dispatcher);
+            } catch(RuntimeException | Error e) {
+                throw e;
+            } catch(Throwable t) {
+                throw new LuaError(t);
             }
-            return false;
         }
     }
 }
@@ -2,29 +2,100 @@ package com.github.natanbc.luaeval.utils;
 
 import com.github.natanbc.luaeval.LuaEvaluator;
 import org.luaj.vm2.LuaFunction;
-import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaValue;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.*;
+
+import static com.github.natanbc.luaeval.utils.LuaInterface.Dispatcher.*;
 
 class LuaLambda {
     private static final Method[] OBJECT_METHODS = Object.class.getDeclaredMethods();
+    private static final Map<Class<?>, Adapter> ADAPTERS = new HashMap<>();
+    private static final ClassValue<Method> LAMBDA_METHODS = new ClassValue<Method>() {
+        @Override
+        protected Method computeValue(Class<?> type) {
+            return findLambdaMethod(type);
+        }
+    };
+
+    static {
+        //the common jdk interfaces call the function directly, everything else goes through LuaInterface
+        ADAPTERS.put(Runnable.class, (e, f)->(Runnable)f::call);
+        ADAPTERS.put(Callable.class, (e, f)->(Callable<Object>)()->toObject(f.call()));
+        ADAPTERS.put(Supplier.class, (e, f)->(Supplier<Object>)()->toObject(f.call()));
+        ADAPTERS.put(Consumer.class, (e, f)->(Consumer<Object>)a->f.call(toLua(e, a)));
+        ADAPTERS.put(BiConsumer.class, (e, f)->(BiConsumer<Object, Object>)(a, b)->f.call(toLua(e, a), toLua(e, b)));
+        ADAPTERS.put(Function.class, (e, f)->(Function<Object, Object>)a->toObject(f.call(toLua(e, a))));
+        ADAPTERS.put(UnaryOperator.class, (e, f)->(UnaryOperator<Object>)a->toObject(f.call(toLua(e, a))));
+        ADAPTERS.put(BiFunction.class, (e, f)->(BiFunction<Object, Object, Object>)(a, b)->toObject(f.call(toLua(e, a), toLua(e, b))));
+        ADAPTERS.put(BinaryOperator.class, (e, f)->(BinaryOperator<Object>)(a, b)->toObject(f.call(toLua(e, a), toLua(e, b))));
+        ADAPTERS.put(Predicate.class, (e, f)->(Predicate<Object>)a->toBoolean(f.call(toLua(e, a))));
+        ADAPTERS.put(BiPredicate.class, (e, f)->(BiPredicate<Object, Object>)(a, b)->toBoolean(f.call(toLua(e, a), toLua(e, b))));
+        ADAPTERS.put(Comparator.class, (e, f)->(Comparator<Object>)(a, b)->toInt(f.call(toLua(e, a), toLua(e, b))));
+        ADAPTERS.put(ToIntFunction.class, (e, f)->(ToIntFunction<Object>)a->toInt(f.call(toLua(e, a))));
+        ADAPTERS.put(ToLongFunction.class, (e, f)->(ToLongFunction<Object>)a->toLong(f.call(toLua(e, a))));
+        ADAPTERS.put(ToDoubleFunction.class, (e, f)->(ToDoubleFunction<Object>)a->toDouble(f.call(toLua(e, a))));
+
+        ADAPTERS.put(IntPredicate.class, (e, f)->(IntPredicate)a->toBoolean(f.call(LuaInteger.valueOf(a))));
+        ADAPTERS.put(IntFunction.class, (e, f)->(IntFunction<Object>)a->toObject(f.call(LuaInteger.valueOf(a))));
+        ADAPTERS.put(IntConsumer.class, (e, f)->(IntConsumer)a->f.call(LuaInteger.valueOf(a)));
+        ADAPTERS.put(IntSupplier.class, (e, f)->(IntSupplier)()->toInt(f.call()));
+        ADAPTERS.put(IntUnaryOperator.class, (e, f)->(IntUnaryOperator)a->toInt(f.call(LuaInteger.valueOf(a))));
+        ADAPTERS.put(IntBinaryOperator.class, (e, f)->(IntBinaryOperator)(a, b)->toInt(f.call(LuaInteger.valueOf(a), LuaInteger.valueOf(b))));
+        ADAPTERS.put(IntToLongFunction.class, (e, f)->(IntToLongFunction)a->toLong(f.call(LuaInteger.valueOf(a))));
+        ADAPTERS.put(IntToDoubleFunction.class, (e, f)->(IntToDoubleFunction)a->toDouble(f.call(LuaInteger.valueOf(a))));
+
+        ADAPTERS.put(LongPredicate.class, (e, f)->(LongPredicate)a->toBoolean(f.call(LuaInteger.valueOf(a))));
+        ADAPTERS.put(LongFunction.class, (e, f)->(LongFunction<Object>)a->toObject(f.call(LuaInteger.valueOf(a))));
+        ADAPTERS.put(LongConsumer.class, (e, f)->(LongConsumer)a->f.call(LuaInteger.valueOf(a)));
+        ADAPTERS.put(LongSupplier.class, (e, f)->(LongSupplier)()->toLong(f.call()));
+        ADAPTERS.put(LongUnaryOperator.class, (e, f)->(LongUnaryOperator)a->toLong(f.call(LuaInteger.valueOf(a))));
+        ADAPTERS.put(LongBinaryOperator.class, (e, f)->(LongBinaryOperator)(a, b)->toLong(f.call(LuaInteger.valueOf(a), LuaInteger.valueOf(b))));
+        ADAPTERS.put(LongToIntFunction.class, (e, f)->(LongToIntFunction)a->toInt(f.call(LuaInteger.valueOf(a))));
+        ADAPTERS.put(LongToDoubleFunction.class, (e, f)->(LongToDoubleFunction)a->toDouble(f.call(LuaInteger.valueOf(a))));
+
+        ADAPTERS.put(DoublePredicate.class, (e, f)->(DoublePredicate)a->toBoolean(f.call(LuaValue.valueOf(a))));
+        ADAPTERS.put(DoubleFunction.class, (e, f)->(DoubleFunction<Object>)a->toObject(f.call(LuaValue.valueOf(a))));
+        ADAPTERS.put(DoubleConsumer.class, (e, f)->(DoubleConsumer)a->f.call(LuaValue.valueOf(a)));
+        ADAPTERS.put(DoubleSupplier.class, (e, f)->(DoubleSupplier)()->toDouble(f.call()));
+        ADAPTERS.put(DoubleUnaryOperator.class, (e, f)->(DoubleUnaryOperator)a->toDouble(f.call(LuaValue.valueOf(a))));
+        ADAPTERS.put(DoubleBinaryOperator.class, (e, f)->(DoubleBinaryOperator)(a, b)->toDouble(f.call(LuaValue.valueOf(a), LuaValue.valueOf(b))));
+        ADAPTERS.put(DoubleToIntFunction.class, (e, f)->(DoubleToIntFunction)a->toInt(f.call(LuaValue.valueOf(a))));
+        ADAPTERS.put(DoubleToLongFunction.class, (e, f)->(DoubleToLongFunction)a->toLong(f.call(LuaValue.valueOf(a))));
+
+        ADAPTERS.put(BooleanSupplier.class, (e, f)->(BooleanSupplier)()->toBoolean(f.call()));
+    }
 
     @SuppressWarnings("unchecked")
     static <T> T toLambda(LuaEvaluator evaluator, Class<T> lambdaClass, LuaFunction function) {
-        if(!lambdaClass.isInterface() || lambdaClass.getAnnotation(FunctionalInterface.class) == null) throw new UnsupportedOperationException(lambdaClass + " is not a FunctionalInterface");
-        Method lambdaMethod = findLambdaMethod(lambdaClass);
-
-        LuaTable t = new LuaTable();
-        t.set(lambdaMethod.getName(), function);
-        return LuaInterface.implement(evaluator, lambdaClass, t, lambdaMethod);
+        evaluator.markJavaReferences();
+        Adapter adapter = ADAPTERS.get(lambdaClass);
+        if(adapter != null) return (T)adapter.adapt(evaluator, BoundFunction.bind(evaluator, function));
+        if(!isLambda(lambdaClass)) throw new UnsupportedOperationException(lambdaClass + " is not a FunctionalInterface");
+        Method lambdaMethod = LAMBDA_METHODS.get(lambdaClass);
+        return LuaInterface.implement(evaluator, lambdaClass, new Method[]{lambdaMethod}, new LuaFunction[]{function});
     }
 
     static boolean isLambda(Class<?> clazz) {
         return clazz.isInterface() && clazz.getAnnotation(FunctionalInterface.class) != null;
     }
 
+    private static LuaValue toLua(LuaEvaluator evaluator, Object obj) {
+        return LuaHelper.toLua(evaluator, obj);
+    }
+
+    private static Object toObject(LuaValue value) {
+        return LuaHelper.getInstance(value, Object.class);
+    }
+
     private static Method findLambdaMethod(Class<?> lambdaClass) {
         outer: for(Method method : lambdaClass.getMethods()) {
             if(method.isDefault() || Modifier.isStatic(method.getModifiers())) continue;
@@ -46,4 +117,8 @@ class LuaLambda {
         }
         throw new AssertionError();
     }
+
+    private interface Adapter {
+        Object adapt(LuaEvaluator evaluator, LuaFunction function);
+    }
 }
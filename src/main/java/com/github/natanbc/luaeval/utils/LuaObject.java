@@ -2,29 +2,26 @@ package com.github.natanbc.luaeval.utils;
 
 import com.github.natanbc.luaeval.LuaEvaluator;
 import org.luaj.vm2.LuaBoolean;
-import org.luaj.vm2.LuaError;
-import org.luaj.vm2.LuaNumber;
+import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 
-import java.lang.reflect.AccessibleObject;
-import java.lang.reflect.Array;
-import java.lang.reflect.Field;
 import java.util.Objects;
 
 public class LuaObject extends LuaTable {
-    private final LuaEvaluator evaluator;
+    private static final LuaString NEW = LuaString.valueOf("new");
+
+    final LuaEvaluator evaluator;
     final Object instance;
-    private final Class<?> arrayClass;
-    private final Field[] fields;
+    private final ClassBinding binding;
+    //functions bound to this instance, created on first access so obj.foo == obj.foo and calls don't allocate them
+    private LuaFunction[] bound;
 
-    LuaObject(LuaEvaluator evaluator, Object instance, Field[] fields) {
+    LuaObject(LuaEvaluator evaluator, Object instance, ClassBinding binding) {
         this.evaluator = evaluator;
         this.instance = instance;
-        this.arrayClass = instance != null && instance.getClass().isArray() ? instance.getClass() : null;
-        this.fields = fields;
-        AccessibleObject.setAccessible(fields, true);
+        this.binding = binding;
         ((EvaluatorGlobals)evaluator.getGlobals()).hooks.forEach(hook->hook.onObjectWrapped(this, instance));
     }
 
@@ -40,118 +37,42 @@ public class LuaObject extends LuaTable {
     @Override
     public LuaValue get(LuaValue key) {
         LuaValue v = super.rawget(key);
-        if(v.isnil() && key.isstring() && !key.isnumber()) {
-            String s = key.tojstring();
-            if(arrayClass != null && s.equals("length")) {
-                return LuaNumber.valueOf(Array.getLength(instance));
-            }
-            for(Field f : fields) {
-                if(f.getName().equals(s)) {
-                    try {
-                        Object obj = f.get(instance);
-                        if(obj == null) return v;
-                        if(obj instanceof LuaValue) return (LuaValue)obj;
-                        return LuaHelper.coerce(evaluator, obj);
-                    } catch(IllegalAccessException e) {
-                        throw new AssertionError(e);
-                    }
-                }
+        if(!v.isnil()) return v;
+        //member names are interned lua strings, look them up before paying for a numeric parse of the key
+        if(key.type() == TSTRING) {
+            //everything is resolved through the class binding, the wrapper itself only holds the instance
+            MethodGroup methods = binding.methods(key);
+            if(methods != null) {
+                return bound(methods);
             }
-        } else if(v.isnil() && key.isnumber()) {
-            if(arrayClass == null) return v;
-            double d = key.todouble();
-            if(d % 1 != 0 || d > Integer.MAX_VALUE || d < 1) return v;
-            int i = (int)d;
-            int len = Array.getLength(instance);
-            if(i > len) {
-                return v;
+            FieldAccessor field = binding.field(key);
+            if(field != null) {
+                return field.read(evaluator, instance);
             }
-            i--;
-            if(arrayClass == boolean[].class) {
-                return LuaBoolean.valueOf(((boolean[])instance)[i]);
-            } else if(arrayClass == byte[].class) {
-                return LuaNumber.valueOf(((byte[])instance)[i]);
-            } else if(arrayClass == short[].class) {
-                return LuaNumber.valueOf(((short[])instance)[i]);
-            } else if(arrayClass == char[].class) {
-                return LuaString.valueOf(new String((char[])instance, i, 1));
-            } else if(arrayClass == int[].class) {
-                return LuaNumber.valueOf(((int[])instance)[i]);
-            } else if(arrayClass == float[].class) {
-                return LuaNumber.valueOf(((float[])instance)[i]);
-            } else if(arrayClass == long[].class) {
-                return LuaNumber.valueOf(((long[])instance)[i]);
-            } else if(arrayClass == double[].class) {
-                return LuaNumber.valueOf(((double[])instance)[i]);
-            } else {
-                return LuaHelper.coerce(evaluator, arrayClass.getComponentType(), ((Object[])instance)[i]);
+            if(binding.isClassObject && key.raweq(NEW)) {
+                return new LuaHelper.New(evaluator, (Class<?>)instance);
             }
         }
         return v;
     }
 
+    private LuaFunction bound(MethodGroup methods) {
+        //racing threads may both bind a method, either function works
+        LuaFunction[] b = bound;
+        if(b == null) bound = b = new LuaFunction[binding.methodCount()];
+        LuaFunction f = b[methods.index];
+        if(f == null) b[methods.index] = f = methods.bind(evaluator, this, instance);
+        return f;
+    }
+
     @Override
     public void set(LuaValue key, LuaValue value) {
-        if(key.isstring() && !key.isnumber()) {
-            String s = key.tojstring();
-            if(arrayClass != null && s.equals("length")) {
-                throw new LuaError("Java array length cannot be modified");
-            }
-            for(Field f : fields) {
-                if(f.getName().equals(s)) {
-                    try {
-                        Object obj = LuaHelper.getInstance(value, Object.class);
-                        if(!f.getType().isInstance(obj) && obj != null) {
-                            throw new LuaError("TypeError: " + f.getType().getName() + " expected, got " + value.typename());
-                        }
-                        f.set(instance, obj);
-                    } catch(IllegalAccessException e) {
-                        throw new AssertionError(e);
-                    }
-                }
-            }
-        } else if(key.isnumber()) {
-            if(arrayClass == null) {
-                super.set(key, value);
+        if(key.type() == TSTRING) {
+            FieldAccessor field = binding.field(key);
+            if(field != null) {
+                field.write(evaluator, instance, value);
                 return;
             }
-            double d = key.todouble();
-            if(d % 1 != 0 || d > Integer.MAX_VALUE || d < 1) {
-                super.set(key, value);
-                return;
-            }
-            int i = (int)d;
-            int len = Array.getLength(instance);
-            if(i > len) {
-                super.set(key, value);
-                return;
-            }
-            i--;
-            if(arrayClass == boolean[].class) {
-                ((boolean[])instance)[i] = value.checkboolean();
-            } else if(arrayClass == byte[].class) {
-                ((byte[])instance)[i] = value.checknumber().tobyte();
-            } else if(arrayClass == short[].class) {
-                ((short[])instance)[i] = value.checknumber().toshort();
-            } else if(arrayClass == char[].class) {
-                if(value.checkstring().m_length != 1) throw new LuaError("TypeError: expected a single char, got multiple");
-                ((char[])instance)[i] = value.tojstring().charAt(0);
-            } else if(arrayClass == int[].class) {
-                ((int[])instance)[i] = value.checknumber().toint();
-            } else if(arrayClass == float[].class) {
-                ((float[])instance)[i] = value.checknumber().tofloat();
-            } else if(arrayClass == long[].class) {
-                ((long[])instance)[i] = value.checknumber().tolong();
-            } else if(arrayClass == double[].class) {
-                ((double[])instance)[i] = value.checknumber().todouble();
-            } else {
-                Object obj = LuaHelper.getInstance(value, Object.class);
-                if(!arrayClass.getComponentType().isInstance(obj) && obj != null) {
-                    throw new LuaError("TypeError: " + arrayClass.getComponentType().getName() + " expected, got " + value.typename());
-                }
-                ((Object[])instance)[i] = obj;
-            }
-            return;
         }
         super.set(key, value);
     }
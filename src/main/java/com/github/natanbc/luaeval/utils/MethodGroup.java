@@ -0,0 +1,57 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import com.github.natanbc.luaeval.MetricsRecorder;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+class MethodGroup {
+    final String name;
+    //position in the class binding, wrappers keep their bound functions at it
+    final int index;
+    private final Overloads overloads;
+
+    MethodGroup(String name, int index, List<Method> methods) {
+        this.name = name;
+        this.index = index;
+        this.overloads = new Overloads(methods);
+    }
+
+    LuaFunction bind(LuaEvaluator evaluator, LuaObject object, Object instance) {
+        return new VarArgFunction() {
+            @Override
+            public Varargs onInvoke(Varargs varargs) {
+                return MethodGroup.this.invoke(evaluator, object, instance, varargs);
+            }
+        };
+    }
+
+    Varargs invoke(LuaEvaluator evaluator, LuaObject object, Object instance, Varargs varargs) {
+        LuaValue[] array = new LuaValue[varargs.narg()];
+        for(int j = 0; j < array.length; j++) {
+            array[j] = varargs.arg(j+1);
+        }
+        MetricsRecorder metrics = evaluator.getMetrics();
+        int index = overloads.resolve(array, metrics);
+        if(index == Overloads.NO_MATCH) {
+            throw new LuaError("No matching method found");
+        }
+        metrics.onJavaCall(overloads.members[index]);
+        Object[] args = LuaHelper.args(evaluator, overloads.isVarArgs(index), overloads.parameterTypes[index], array);
+        Object o;
+        try {
+            o = overloads.invokers[index].invoke(instance, args);
+        } catch(Throwable t) {
+            throw new LuaError(t);
+        }
+        if(o == instance && object != null) return object;
+        if(o == null) return LuaValue.NIL;
+        return LuaHelper.toLua(evaluator, o);
+    }
+}
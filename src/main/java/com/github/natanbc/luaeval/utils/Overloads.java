@@ -0,0 +1,246 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.MetricsRecorder;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+//picks the best overload for the lua types of the arguments, remembering the choice for each combination of types
+class Overloads {
+    static final int NO_MATCH = -1;
+
+    private static final int INCOMPATIBLE = -1;
+    private static final int ARITY_MISMATCH = 1000;
+    private static final int MAX_CACHED_SIGNATURES = 64;
+
+    private static final Object NIL = new Object();
+    private static final Object BOOLEAN = new Object();
+    private static final Object INTEGER = new Object();
+    private static final Object DOUBLE = new Object();
+    private static final Object STRING = new Object();
+    private static final Object NUMERIC_STRING = new Object();
+    private static final Object CHAR_STRING = new Object();
+    private static final Object NUMERIC_CHAR_STRING = new Object();
+    private static final Object TABLE = new Object();
+    private static final Object FUNCTION = new Object();
+    private static final Object NULL_OBJECT = new Object();
+    private static final Object OTHER = new Object();
+
+    final Executable[] members;
+    final Class<?>[][] parameterTypes;
+    final Invoker[] invokers;
+    private final boolean[] varargs;
+    private final boolean needsStringInfo;
+    private final ConcurrentMap<Signature, Integer> resolved = new ConcurrentHashMap<>();
+
+    Overloads(List<? extends Executable> members) {
+        Executable[] array = members.toArray(new Executable[0]);
+        //getMethods()/getConstructors() order is unspecified, sort so ties are broken the same way every time
+        Arrays.sort(array, Comparator.comparingInt(Executable::getParameterCount).thenComparing(Executable::toGenericString));
+        this.members = array;
+        this.parameterTypes = new Class<?>[array.length][];
+        this.invokers = new Invoker[array.length];
+        this.varargs = new boolean[array.length];
+        boolean needsStringInfo = false;
+        for(int i = 0; i < array.length; i++) {
+            parameterTypes[i] = array[i].getParameterTypes();
+            varargs[i] = array[i].isVarArgs();
+            invokers[i] = array[i] instanceof Method ? Invoker.of((Method)array[i]) : Invoker.of((Constructor<?>)array[i]);
+            for(Class<?> c : parameterTypes[i]) {
+                needsStringInfo |= c == char.class || c == Character.class || isNumeric(c);
+            }
+        }
+        this.needsStringInfo = needsStringInfo;
+    }
+
+    int size() {
+        return members.length;
+    }
+
+    boolean isVarArgs(int index) {
+        return varargs[index];
+    }
+
+    int resolve(LuaValue[] args, MetricsRecorder metrics) {
+        if(members.length == 1) return 0;
+        Signature signature = new Signature(args, needsStringInfo);
+        Integer cached = resolved.get(signature);
+        if(cached != null) return cached;
+        metrics.onOverloadMiss(members);
+        int best = NO_MATCH;
+        int bestScore = Integer.MAX_VALUE;
+        for(int i = 0; i < members.length; i++) {
+            int score = score(parameterTypes[i], varargs[i], args);
+            if(score != INCOMPATIBLE && score < bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        if(resolved.size() < MAX_CACHED_SIGNATURES) resolved.put(signature, best);
+        return best;
+    }
+
+    private static int score(Class<?>[] params, boolean isVarargs, LuaValue[] args) {
+        int total = 0;
+        int fixed = isVarargs ? params.length - 1 : params.length;
+        for(int i = 0; i < fixed; i++) {
+            if(i >= args.length) {
+                //missing arguments get default values
+                total += ARITY_MISMATCH;
+                continue;
+            }
+            int s = score(params[i], args[i]);
+            if(s == INCOMPATIBLE) return INCOMPATIBLE;
+            total += s;
+        }
+        if(isVarargs) {
+            Class<?> array = params[fixed];
+            if(args.length == params.length && score(array, args[fixed]) != INCOMPATIBLE && !args[fixed].isnil()) {
+                //array passed directly
+                total += score(array, args[fixed]);
+            } else {
+                for(int i = fixed; i < args.length; i++) {
+                    int s = score(array.getComponentType(), args[i]);
+                    if(s == INCOMPATIBLE) return INCOMPATIBLE;
+                    total += s;
+                }
+            }
+            //prefer fixed arity methods, like java does
+            total += 1;
+        } else if(args.length > params.length) {
+            //extra arguments are ignored
+            total += ARITY_MISMATCH;
+        }
+        return total;
+    }
+
+    //lower is better, mirrors what LuaHelper.args accepts
+    private static int score(Class<?> cls, LuaValue value) {
+        if(cls == boolean.class) {
+            return value.isboolean() ? 0 : INCOMPATIBLE;
+        }
+        if(cls.isPrimitive()) {
+            if(cls == char.class) return isChar(value) ? 6 : INCOMPATIBLE;
+            return numberScore(cls, value);
+        }
+        if(cls == Boolean.class) {
+            return value.isnil() ? 5 : value.isboolean() ? 1 : INCOMPATIBLE;
+        }
+        if(isNumeric(cls)) {
+            if(value.isnil()) return 5;
+            int s = numberScore(cls, value);
+            return s == INCOMPATIBLE ? s : s + 1;
+        }
+        if(cls == Character.class) {
+            return value.isnil() ? 5 : isChar(value) ? 7 : INCOMPATIBLE;
+        }
+        if(cls == String.class) {
+            if(value.isnil()) return 5;
+            if(!value.isstring()) return INCOMPATIBLE;
+            return value.type() == LuaValue.TSTRING ? 0 : 8;
+        }
+        if(cls == CharSequence.class && (value.isnil() || value.isstring())) {
+            if(value.isnil()) return 5;
+            return value.type() == LuaValue.TSTRING ? 1 : 8;
+        }
+        if(value instanceof LuaObject) {
+            Object instance = ((LuaObject) value).instance;
+            return cls.isInstance(instance) ? distance(cls, instance.getClass()) : INCOMPATIBLE;
+        }
+        if(cls == Object.class) return 20;
+        if(cls.isArray() && value.istable()) return 2;
+        if(LuaLambda.isLambda(cls) && value.isfunction()) return 1;
+        return value.isnil() ? 5 : INCOMPATIBLE;
+    }
+
+    private static int numberScore(Class<?> cls, LuaValue value) {
+        if(!value.isnumber()) return INCOMPATIBLE;
+        int penalty = value.type() == LuaValue.TNUMBER ? 0 : 10;
+        if(value.isinttype()) {
+            if(cls == int.class || cls == Integer.class) return penalty;
+            if(cls == long.class || cls == Long.class) return penalty + 1;
+            if(cls == double.class || cls == Double.class) return penalty + 2;
+            if(cls == float.class || cls == Float.class) return penalty + 3;
+            if(cls == short.class || cls == Short.class) return penalty + 4;
+            return penalty + 5;
+        }
+        if(cls == double.class || cls == Double.class) return penalty;
+        if(cls == float.class || cls == Float.class) return penalty + 1;
+        if(cls == long.class || cls == Long.class) return penalty + 4;
+        if(cls == int.class || cls == Integer.class) return penalty + 5;
+        if(cls == short.class || cls == Short.class) return penalty + 6;
+        return penalty + 7;
+    }
+
+    private static int distance(Class<?> cls, Class<?> actual) {
+        if(cls == actual) return 0;
+        if(cls == Object.class) return 15;
+        if(cls.isInterface()) return 3;
+        int d = 0;
+        for(Class<?> c = actual; c != null && c != cls; c = c.getSuperclass()) d++;
+        return Math.min(d, 14);
+    }
+
+    private static boolean isNumeric(Class<?> cls) {
+        return cls == byte.class || cls == short.class || cls == int.class || cls == float.class || cls == long.class || cls == double.class ||
+                cls == Byte.class || cls == Short.class || cls == Integer.class || cls == Float.class || cls == Long.class || cls == Double.class;
+    }
+
+    private static boolean isChar(LuaValue value) {
+        return value.isstring() && value.tojstring().length() == 1;
+    }
+
+    private static class Signature {
+        private final Object[] types;
+        private final int hash;
+
+        Signature(LuaValue[] args, boolean needsStringInfo) {
+            Object[] types = new Object[args.length];
+            for(int i = 0; i < args.length; i++) {
+                types[i] = typeOf(args[i], needsStringInfo);
+            }
+            this.types = types;
+            this.hash = Arrays.hashCode(types);
+        }
+
+        private static Object typeOf(LuaValue v, boolean needsStringInfo) {
+            switch(v.type()) {
+                case LuaValue.TNIL: return NIL;
+                case LuaValue.TBOOLEAN: return BOOLEAN;
+                case LuaValue.TNUMBER: return v.isinttype() ? INTEGER : DOUBLE;
+                case LuaValue.TSTRING:
+                    if(!needsStringInfo) return STRING;
+                    if(isChar(v)) return v.isnumber() ? NUMERIC_CHAR_STRING : CHAR_STRING;
+                    return v.isnumber() ? NUMERIC_STRING : STRING;
+                case LuaValue.TFUNCTION: return FUNCTION;
+                case LuaValue.TTABLE:
+                    if(v instanceof LuaObject) {
+                        Object instance = ((LuaObject) v).instance;
+                        return instance == null ? NULL_OBJECT : instance.getClass();
+                    }
+                    return v instanceof LuaTable ? TABLE : OTHER;
+                default:
+                    return v instanceof LuaFunction ? FUNCTION : OTHER;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Signature && Arrays.equals(types, ((Signature) obj).types);
+        }
+    }
+}
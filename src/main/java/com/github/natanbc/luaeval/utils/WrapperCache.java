@@ -0,0 +1,65 @@
+package com.github.natanbc.luaeval.utils;
+
+import org.luaj.vm2.LuaTable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+//identity map from java objects to their wrappers, holding neither of them strongly
+class WrapperCache {
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    private final Map<Key, WeakReference<LuaTable>> map = new HashMap<>();
+
+    LuaTable get(Object instance) {
+        expunge();
+        Key key = new Key(instance, null);
+        WeakReference<LuaTable> ref = map.get(key);
+        if(ref == null) return null;
+        LuaTable wrapper = ref.get();
+        //the wrapper was collected while the object is still alive somewhere else
+        if(wrapper == null) map.remove(key);
+        return wrapper;
+    }
+
+    void put(Object instance, LuaTable wrapper) {
+        expunge();
+        map.put(new Key(instance, queue), new WeakReference<>(wrapper));
+    }
+
+    void clear() {
+        map.clear();
+        while(queue.poll() != null);
+    }
+
+    private void expunge() {
+        Reference<?> ref;
+        while((ref = queue.poll()) != null) {
+            map.remove(ref);
+        }
+    }
+
+    private static class Key extends WeakReference<Object> {
+        private final int hash;
+
+        Key(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(obj == this) return true;
+            if(!(obj instanceof Key)) return false;
+            Object referent = get();
+            return referent != null && referent == ((Key) obj).get();
+        }
+    }
+}
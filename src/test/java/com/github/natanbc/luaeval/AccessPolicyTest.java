@@ -0,0 +1,84 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class AccessPolicyTest {
+    @Test
+    public void packagesCoverSubpackages() {
+        AccessPolicy policy = AccessPolicy.EMPTY.blockPackage("java.util");
+        assertTrue(policy.isBlocked(ArrayList.class));
+        assertTrue(policy.isBlocked(ConcurrentHashMap.class));
+        assertFalse(policy.isBlocked(String.class));
+        assertFalse(AccessPolicy.EMPTY.blockPackage("java.util.concurrent").isBlocked(ArrayList.class));
+    }
+
+    @Test
+    public void classesAreMatchedByName() {
+        AccessPolicy policy = AccessPolicy.EMPTY.blockClass(ArrayList.class);
+        assertTrue(policy.isBlocked(ArrayList.class));
+        assertFalse(policy.isBlocked(HashMap.class));
+        assertTrue(policy.isBlocked(ArrayList[][].class));
+        assertFalse(policy.isBlocked(int[].class));
+    }
+
+    @Test
+    public void allowRulesMakeAnAllowlist() {
+        AccessPolicy policy = AccessPolicy.EMPTY.allowPackage("java.util").allowClass(String.class);
+        assertTrue(policy.isAllowlist());
+        assertFalse(policy.isBlocked(ArrayList.class));
+        assertFalse(policy.isBlocked(String.class));
+        assertTrue(policy.isBlocked(Thread.class));
+        //block rules win
+        assertTrue(policy.blockClass(HashMap.class).isBlocked(HashMap.class));
+    }
+
+    @Test
+    public void membersOfBlockedClassesAreBlocked() throws NoSuchMethodException {
+        AccessPolicy policy = AccessPolicy.EMPTY.blockClass(ArrayList.class);
+        assertTrue(policy.isBlocked(ArrayList.class.getMethod("clear")));
+        assertFalse(policy.isBlocked(Object.class.getMethod("hashCode")));
+        //allowlists don't hide inherited members
+        assertFalse(AccessPolicy.EMPTY.allowClass(ArrayList.class).isBlocked(Object.class.getMethod("hashCode")));
+        assertTrue(AccessPolicy.EMPTY.block(ArrayList.class.getMethod("clear")).isBlocked(ArrayList.class.getMethod("clear")));
+    }
+
+    @Test
+    public void proxiesAreJudgedByTheirInterfaces() {
+        Object proxy = Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Comparator.class}, (p, m, a)->0);
+        assertTrue(AccessPolicy.EMPTY.blockClass(Comparator.class).isBlocked(proxy.getClass()));
+        assertFalse(AccessPolicy.EMPTY.blockClass(List.class).isBlocked(proxy.getClass()));
+    }
+
+    @Test
+    public void equalPoliciesAreEqual() {
+        AccessPolicy a = AccessPolicy.EMPTY.blockClass(Thread.class).allowPackage("java.util");
+        AccessPolicy b = AccessPolicy.EMPTY.allowPackage("java.util").blockClass("java.lang.Thread");
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertSame(a, a.blockClass(Thread.class));
+        assertNotEquals(a, a.blockPackage("java.io"));
+    }
+
+    @Test
+    public void evaluatorsEnforceThePolicy() {
+        LuaEvaluator evaluator = new LuaEvaluator().blockPackage("java.lang.reflect");
+        evaluator.setObject("list", new ArrayList<>());
+        assertEquals(0, evaluator.eval("return list.size()").toint());
+        try {
+            evaluator.setObject("m", String.class.getMethods()[0]);
+            fail("Blocked class was wrapped");
+        } catch(LuaError e) {
+            assertTrue(e.getMessage().contains("is blocked"));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncEvaluationTest {
+    @Test(timeout = 10000)
+    public void completesWithTheResult() throws Exception {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCancellable(true).build();
+        assertEquals(3, evaluator.evalAsync("return 1 + 2", "add").get().toint());
+    }
+
+    @Test(timeout = 10000)
+    public void failuresCompleteExceptionally() throws InterruptedException {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCancellable(true).build();
+        try {
+            evaluator.evalAsync("error('boom')", "fail").get();
+            fail("Error not raised");
+        } catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof LuaError);
+            assertTrue(e.getCause().getMessage().contains("boom"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void cancelStopsPureLuaLoops() throws Exception {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCancellable(true).build();
+        CompletableFuture<LuaValue> loop = evaluator.evalAsync("while true do end", "loop");
+        Thread.sleep(50);
+        assertTrue(loop.cancel(true));
+        //the lock held by the loop is released, later evaluations run
+        assertEquals(1, evaluator.evalAsync("return 1", "one").get().toint());
+    }
+
+    @Test(timeout = 10000)
+    public void budgetsApplyToAsyncEvaluations() throws InterruptedException {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCancellable(true).build();
+        try {
+            evaluator.evalAsync("while true do end", "loop", Budget.time(50, TimeUnit.MILLISECONDS), null).get();
+            fail("Budget not enforced");
+        } catch(ExecutionException e) {
+            assertTrue(CycleLimiterTest.findLimit(e.getCause()) instanceof TimeLimitExceededException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void evaluationsOfAnEvaluatorRunOneAtATime() throws Exception {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCancellable(true).build();
+        evaluator.eval("n = 0 active = 0 overlap = false");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[8];
+            for(int i = 0; i < futures.length; i++) {
+                futures[i] = evaluator.evalAsync("active = active + 1 if active > 1 then overlap = true end " +
+                        "for i = 1, 10000 do end n = n + 1 active = active - 1", "inc", Budget.UNLIMITED, executor);
+            }
+            CompletableFuture.allOf(futures).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(8, evaluator.eval("return n").toint());
+        assertFalse(evaluator.eval("return overlap").toboolean());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void evaluatorsThatCantBeCancelledAreRefused() {
+        new LuaEvaluator().evalAsync("return 1", "one");
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class BatchEvaluatorTest {
+    @Test
+    public void evaluatesEveryRecord() {
+        BatchEvaluator batch = new BatchEvaluator(compile("return x * 2"), "double").setWorkers(3);
+        LuaValue[] results = batch.evaluate(records(10));
+        for(int i = 0; i < 10; i++) {
+            assertEquals(i * 2, results[i].toint());
+        }
+    }
+
+    @Test
+    public void columnarRecords() {
+        BatchEvaluator batch = new BatchEvaluator(compile("return a .. b"), "concat").setWorkers(2);
+        LuaValue[] results = batch.evaluate(new String[]{"a", "b"}, new Object[][]{{"x", "y", "z"}, {1, 2, 3}}, new LuaValue[3]);
+        assertEquals("x1", results[0].tojstring());
+        assertEquals("z3", results[2].tojstring());
+    }
+
+    @Test
+    public void missingKeysAreNotCarriedOver() {
+        BatchEvaluator batch = new BatchEvaluator(compile("return y == nil"), "missing");
+        List<Map<String, Object>> records = new ArrayList<>();
+        records.add(Collections.singletonMap("y", 1));
+        records.add(Collections.singletonMap("x", 1));
+        LuaValue[] results = batch.evaluate(records);
+        assertFalse(results[0].toboolean());
+        assertTrue(results[1].toboolean());
+    }
+
+    @Test
+    public void globalsSetByScriptsAreKeptByTheirWorker() {
+        //documented contract, only the bound globals are reset between records
+        BatchEvaluator batch = new BatchEvaluator(compile("count = (count or 0) + 1 return count"), "count");
+        LuaValue[] results = batch.evaluate(records(3));
+        assertEquals(3, results[2].toint());
+    }
+
+    @Test
+    public void failuresReportTheirRecord() {
+        BatchEvaluator batch = new BatchEvaluator(compile("if x == 7 then error('bad') end return x"), "fail").setWorkers(2);
+        try {
+            batch.evaluate(records(10));
+            fail("Failure not reported");
+        } catch(BatchEvaluationException e) {
+            assertEquals(7, e.getIndex());
+        }
+    }
+
+    @Test
+    public void errorsInWorkersFailTheBatch() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            BatchEvaluator batch = new BatchEvaluator(compile("return x"), "error").setWorkers(2).setExecutor(executor);
+            List<Map<String, Object>> records = records(10);
+            //thrown outside of lua, which would turn it into a LuaError
+            records.set(8, new HashMap<String, Object>() {
+                @Override
+                public Set<Entry<String, Object>> entrySet() {
+                    throw new LinkageError("boom");
+                }
+            });
+            try {
+                batch.evaluate(records);
+                fail("Error not reported");
+            } catch(BatchEvaluationException e) {
+                assertEquals(8, e.getIndex());
+                assertTrue(e.getCause() instanceof LinkageError);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectedWorkersFailTheBatch() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        BatchEvaluator batch = new BatchEvaluator(compile("return x"), "rejected").setWorkers(2).setExecutor(executor);
+        try {
+            batch.evaluate(records(4));
+            fail("Rejection not reported");
+        } catch(BatchEvaluationException e) {
+            assertEquals(2, e.getIndex());
+        }
+    }
+
+    @Test
+    public void streamsEvaluateLazily() {
+        BatchEvaluator batch = new BatchEvaluator(compile("return x + 1"), "stream");
+        List<Integer> results = batch.stream(records(5)).limit(3).map(LuaValue::toint).collect(Collectors.toList());
+        assertEquals(3, results.size());
+        assertEquals(Integer.valueOf(3), results.get(2));
+    }
+
+    private static Prototype compile(String code) {
+        return ChunkCache.compile(null, code, code, MetricsRecorder.NONE);
+    }
+
+    private static List<Map<String, Object>> records(int count) {
+        List<Map<String, Object>> records = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            Map<String, Object> record = new HashMap<>();
+            record.put("x", i);
+            records.add(record);
+        }
+        return records;
+    }
+}
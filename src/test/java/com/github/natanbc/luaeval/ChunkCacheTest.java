@@ -0,0 +1,96 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import org.luaj.vm2.Prototype;
+
+import static org.junit.Assert.*;
+
+public class ChunkCacheTest {
+    @Test
+    public void returnsSamePrototypeForSameSource() {
+        ChunkCache cache = new ChunkCache(4);
+        Prototype a = cache.get("return 1", "a");
+        Prototype b = cache.get("return 1", "a");
+        assertSame(a, b);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertNotSame(a, cache.get("return 1", "b"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ChunkCache cache = new ChunkCache(2);
+        Prototype a = cache.get("return 1", "a");
+        cache.get("return 2", "b");
+        //touch a, so b is the eldest entry
+        cache.get("return 1", "a");
+        cache.get("return 3", "c");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertSame(a, cache.get("return 1", "a"));
+        long misses = cache.getMisses();
+        cache.get("return 2", "b");
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void evictsByWeight() {
+        ChunkCache cache = new ChunkCache(100, 30);
+        cache.get("return 1", "a");
+        cache.get("return 2", "b");
+        cache.get("return 3", "c");
+        cache.get("return 4", "d");
+        assertTrue(cache.weight() <= 30);
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void keepsEntryLargerThanMaxWeight() {
+        ChunkCache cache = new ChunkCache(100, 4);
+        cache.get("return 1", "a");
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidateSubtractsInsertedWeight() {
+        ChunkCache cache = new ChunkCache(100);
+        String code = "return 1";
+        //eval(String) uses the code as chunk name, the weight only counts it once
+        cache.get(code, code);
+        assertEquals(code.length(), cache.weight());
+        cache.invalidate(new String(code), new String(code));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void clearResetsWeight() {
+        ChunkCache cache = new ChunkCache(100);
+        cache.get("return 1", "a");
+        cache.get("return 2", "b");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void evaluatorUsesItsCache() {
+        ChunkCache cache = new ChunkCache(4);
+        LuaEvaluator evaluator = LuaEvaluator.builder().build().setChunkCache(cache);
+        assertEquals(3, evaluator.eval("return 1 + 2").toint());
+        assertEquals(3, evaluator.eval("return 1 + 2").toint());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evaluatorWithoutCacheCompilesEveryTime() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().build().setChunkCache(null);
+        assertNotSame(evaluator.compile("return 1", "a"), evaluator.compile("return 1", "a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidSize() {
+        new ChunkCache(0);
+    }
+}
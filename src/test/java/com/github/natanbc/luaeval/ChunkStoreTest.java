@@ -0,0 +1,109 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.luaj.vm2.Prototype;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChunkStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ChunkStore store;
+
+    @Before
+    public void setup() throws IOException {
+        store = new ChunkStore(folder.newFolder("chunks").toPath());
+    }
+
+    @Test
+    public void storedChunksAreReused() throws IOException {
+        Prototype first = store.get("return 1 + 2", "add");
+        assertEquals(0, store.getHits());
+        assertEquals(1, store.getMisses());
+        assertEquals(1, files().size());
+        //a new store over the same directory, like after a restart
+        ChunkStore restarted = new ChunkStore(store.getDirectory());
+        Prototype second = restarted.get("return 1 + 2", "add");
+        assertNotSame(first, second);
+        assertEquals(1, restarted.getHits());
+        assertEquals(3, new LuaEvaluator().eval(second, "add").toint());
+    }
+
+    @Test
+    public void chunkNamesArePartOfTheKey() throws IOException {
+        store.get("return 1", "a");
+        store.get("return 1", "b");
+        assertEquals(2, store.getMisses());
+        assertEquals(2, files().size());
+        assertEquals("b", store.get("return 1", "b").source.tojstring());
+    }
+
+    @Test
+    public void damagedFilesAreReplaced() throws IOException {
+        store.get("return 'x'", "x");
+        Path file = files().get(0);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 0x55;
+        Files.write(file, bytes);
+        Prototype p = store.get("return 'x'", "x");
+        assertEquals(1, store.getInvalidations());
+        assertEquals(2, store.getMisses());
+        assertEquals("x", new LuaEvaluator().eval(p, "x").tojstring());
+        //rewritten with a fresh compilation
+        store.get("return 'x'", "x");
+        assertEquals(1, store.getHits());
+    }
+
+    @Test
+    public void truncatedFilesAreReplaced() throws IOException {
+        store.get("return 'x'", "x");
+        Path file = files().get(0);
+        Files.write(file, new byte[10]);
+        store.get("return 'x'", "x");
+        assertEquals(1, store.getInvalidations());
+        Files.write(file, new byte[0]);
+        store.get("return 'x'", "x");
+        assertEquals(2, store.getInvalidations());
+        assertEquals(0, store.getHits());
+    }
+
+    @Test
+    public void invalidateAndClear() throws IOException {
+        store.get("return 1", "one");
+        store.get("return 2", "two");
+        store.invalidate("return 1", "one");
+        assertEquals(1, files().size());
+        store.get("return 1", "one");
+        assertEquals(3, store.getMisses());
+        store.clear();
+        assertTrue(files().isEmpty());
+        store.resetStats();
+        assertEquals(0, store.getMisses());
+    }
+
+    @Test
+    public void evaluatorsUseTheStore() {
+        LuaEvaluator evaluator = new LuaEvaluator().setChunkStore(store);
+        assertEquals(4, evaluator.eval("return 2 * 2", "mul").toint());
+        assertEquals(1, store.getMisses());
+    }
+
+    private List<Path> files() throws IOException {
+        List<Path> list = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(store.getDirectory(), "*.luac")) {
+            for(Path file : files) list.add(file);
+        }
+        return list;
+    }
+}
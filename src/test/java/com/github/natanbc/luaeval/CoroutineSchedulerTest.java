@@ -0,0 +1,184 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.Prototype;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CoroutineSchedulerTest {
+    private CoroutineScheduler scheduler;
+
+    @Before
+    public void setup() {
+        scheduler = new CoroutineScheduler(1, 1000);
+    }
+
+    @After
+    public void teardown() {
+        scheduler.close();
+    }
+
+    @Test(timeout = 10000)
+    public void completesWithTheReturnedValue() throws Exception {
+        ScriptTask task = scheduler.submit(evaluator(), compile("local n = 0 for i = 1, 10000 do n = n + i end return n"), "sum");
+        assertEquals(50005000, task.get().toint());
+        assertTrue(task.getSlices() > 1);
+        assertTrue(task.getInstructions() > 10000);
+        assertEquals(ScriptTask.State.DONE, task.getState());
+        assertEquals(0, scheduler.getTaskCount());
+    }
+
+    @Test(timeout = 10000)
+    public void busyScriptsDontStarveOthers() throws Exception {
+        LuaEvaluator evaluator = evaluator();
+        ScriptTask busy = scheduler.submit(evaluator(), compile("while true do end"), "busy");
+        ScriptTask quick = scheduler.submit(evaluator, compile("for i = 1, 5000 do end return 1"), "quick");
+        assertEquals(1, quick.get().toint());
+        assertFalse(busy.isDone());
+        assertTrue(busy.cancel(false));
+    }
+
+    @Test(timeout = 10000)
+    public void weightsShareTheCarriers() throws Exception {
+        LuaEvaluator a = evaluator();
+        LuaEvaluator b = evaluator();
+        ScriptTask light = scheduler.submit(a, a.load(compile("while true do end"), "light"), "light", 1);
+        ScriptTask heavy = scheduler.submit(b, b.load(compile("while true do end"), "heavy"), "heavy", 4);
+        while(light.getSlices() < 20) Thread.sleep(5);
+        light.cancel(false);
+        heavy.cancel(false);
+        double ratio = (double)heavy.getSlices() / light.getSlices();
+        assertTrue("ratio " + ratio, ratio > 2 && ratio < 8);
+    }
+
+    @Test(timeout = 10000)
+    public void yieldsWaitForWake() throws Exception {
+        ScriptTask task = scheduler.submit(evaluator(), compile("local v = coroutine.yield('ready') return v * 2"), "wait");
+        while(task.getState() != ScriptTask.State.WAITING) Thread.sleep(5);
+        assertEquals("ready", task.getYielded().arg1().tojstring());
+        assertEquals(0, scheduler.getReadyCount());
+        assertTrue(task.wake(21));
+        assertEquals(42, task.get().toint());
+        assertFalse(task.wake(1));
+    }
+
+    @Test(timeout = 10000)
+    public void nestedCoroutinesStillWork() throws Exception {
+        ScriptTask task = scheduler.submit(evaluator(), compile("local co = coroutine.wrap(function(a) " +
+                "local b = coroutine.yield(a + 1) return ('x'):rep(b) end) return co(1) .. co(3)"), "nested");
+        assertEquals("2xxx", task.get().tojstring());
+    }
+
+    @Test(timeout = 10000)
+    public void failuresKeepTheirException() throws InterruptedException {
+        ScriptTask task = scheduler.submit(evaluator(), compile("error('boom')"), "fail");
+        try {
+            task.get();
+            fail("Error not raised");
+        } catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof LuaError);
+            assertTrue(e.getCause().getMessage().contains("boom"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void cancelledTasksStop() throws Exception {
+        ScriptTask task = scheduler.submit(evaluator(), compile("while true do end"), "loop");
+        while(task.getSlices() == 0) Thread.sleep(5);
+        assertTrue(task.cancel(true));
+        try {
+            task.get();
+            fail("Not cancelled");
+        } catch(CancellationException ignored) {
+        }
+        //the carrier moves on to other tasks
+        assertEquals(1, scheduler.submit(evaluator(), compile("return 1"), "one").get().toint());
+    }
+
+    @Test(timeout = 10000)
+    public void cancelStopsARunningSlice() throws Exception {
+        try(CoroutineScheduler scheduler = new CoroutineScheduler(1, Long.MAX_VALUE)) {
+            ScriptTask task = scheduler.submit(evaluator(), compile("while true do end"), "loop");
+            while(task.getState() != ScriptTask.State.RUNNING) Thread.sleep(5);
+            assertTrue(task.cancel(true));
+            //the slice never ends on its own, the carrier is only free again if it was stopped
+            assertEquals(1, scheduler.submit(evaluator(), compile("return 1"), "one").get().toint());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void timeLimitsApplyToTasks() throws InterruptedException {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setTimeLimit(100, TimeUnit.MILLISECONDS).build();
+        expectLimit(scheduler.submit(evaluator, compile("while true do end"), "loop"), TimeLimitExceededException.class);
+        assertEquals(1, evaluator.eval("return 1").toint());
+    }
+
+    @Test(timeout = 30000)
+    public void memoryLimitsApplyToTasks() throws InterruptedException {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setMemoryLimit(1_000_000).build();
+        expectLimit(scheduler.submit(evaluator, compile("local t = {} for i = 1, 2000000 do t[i] = {} end"), "alloc"),
+                MemoryLimitExceededException.class);
+    }
+
+    @Test(timeout = 10000)
+    public void tasksKeepTheirOwnLimits() throws Exception {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setTimeLimit(200, TimeUnit.MILLISECONDS).build();
+        ScriptTask loop = scheduler.submit(evaluator, compile("while true do end"), "loop");
+        //interleaved with the loop on the same evaluator, and done long before its own deadline
+        ScriptTask quick = scheduler.submit(evaluator, compile("for i = 1, 5000 do end return 1"), "quick");
+        assertEquals(1, quick.get().toint());
+        expectLimit(loop, TimeLimitExceededException.class);
+    }
+
+    @Test(timeout = 10000)
+    public void cyclesAreRefilledPerTask() throws Exception {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCycleLimit(5000).setRefillCyclesOnEval(true).build();
+        Prototype p = compile("local n = 0 for i = 1, 1000 do n = n + 1 end return n");
+        for(int i = 0; i < 20; i++) {
+            assertEquals(1000, scheduler.submit(evaluator, p, "count").get().toint());
+        }
+        assertEquals(1000, evaluator.eval(p, "count").toint());
+        expectLimit(scheduler.submit(evaluator, compile("while true do end"), "loop"), CycleLimitExceededException.class);
+    }
+
+    @Test(timeout = 10000)
+    public void closeCancelsTasks() {
+        ScriptTask task = scheduler.submit(evaluator(), compile("coroutine.yield()"), "wait");
+        scheduler.close();
+        assertTrue(task.isCancelled());
+        try {
+            scheduler.submit(evaluator(), compile("return 1"), "late");
+            fail("Closed scheduler accepted a task");
+        } catch(IllegalStateException ignored) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void evaluatorsNeedALimiter() {
+        scheduler.submit(new LuaEvaluator(), compile("return 1"), "one");
+    }
+
+    private static void expectLimit(ScriptTask task, Class<? extends RuntimeException> limit) throws InterruptedException {
+        try {
+            task.get();
+            fail("Limit not enforced");
+        } catch(ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), limit.isInstance(CycleLimiterTest.findLimit(e.getCause())));
+        }
+    }
+
+    private static LuaEvaluator evaluator() {
+        return LuaEvaluator.builder().setCancellable(true).build();
+    }
+
+    private static Prototype compile(String code) {
+        return ChunkCache.compile(null, code, code, MetricsRecorder.NONE);
+    }
+}
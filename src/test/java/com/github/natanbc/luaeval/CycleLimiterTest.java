@@ -0,0 +1,104 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+
+import static org.junit.Assert.*;
+
+public class CycleLimiterTest {
+    private static final String LOOP = "while true do end";
+
+    @Test
+    public void stopsInfiniteLoops() {
+        for(CycleLimiter.Mode mode : CycleLimiter.Mode.values()) {
+            LuaEvaluator evaluator = LuaEvaluator.builder().setCycleLimit(10000).setCycleLimitMode(mode).build();
+            assertLimit(evaluator, LOOP);
+        }
+    }
+
+    @Test
+    public void pcallCannotCatchTheLimit() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCycleLimit(10000).setCycleLimitMode(CycleLimiter.Mode.FAST).build();
+        assertLimit(evaluator, "pcall(function() while true do end end) while true do end");
+    }
+
+    @Test
+    public void countsCycles() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCycleLimit(100000).build();
+        assertEquals(0, evaluator.getCyclesUsed());
+        evaluator.eval("for i = 1, 100 do end");
+        long used = evaluator.getCyclesUsed();
+        assertTrue(used >= 100);
+        assertEquals(100000 - used, evaluator.getCyclesRemaining());
+        evaluator.eval("for i = 1, 100 do end");
+        assertEquals(used * 2, evaluator.getCyclesUsed());
+        evaluator.refillCycles();
+        assertEquals(0, evaluator.getCyclesUsed());
+    }
+
+    @Test
+    public void refillOnEval() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCycleLimit(1000).setRefillCyclesOnEval(true).build();
+        for(int i = 0; i < 10; i++) {
+            evaluator.eval("for i = 1, 200 do end");
+        }
+        LuaEvaluator shared = LuaEvaluator.builder().setCycleLimit(1000).build();
+        try {
+            for(int i = 0; i < 10; i++) {
+                shared.eval("for i = 1, 200 do end");
+            }
+            fail("Budget was refilled");
+        } catch(LuaError e) {
+            assertTrue(isLimit(e));
+        }
+    }
+
+    @Test
+    public void perCallBudgets() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCycleLimit(1000000).build();
+        try {
+            evaluator.eval(LOOP, "loop", Budget.cycles(5000));
+            fail("Budget not enforced");
+        } catch(LuaError e) {
+            CycleLimitExceededException limit = (CycleLimitExceededException)findLimit(e);
+            assertEquals(5000, limit.getCycleLimit());
+        }
+        long used = evaluator.getCyclesUsed();
+        assertTrue(used >= 5000 && used < 6000);
+        //the evaluator keeps running once a call budget is exhausted
+        assertEquals(2, evaluator.eval("return 1 + 1").toint());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void budgetsNeedALimiter() {
+        new LuaEvaluator().eval("return 1", "x", Budget.cycles(10));
+    }
+
+    @Test
+    public void fastModeRunsCalls() {
+        LuaEvaluator fast = LuaEvaluator.builder().setCycleLimit(100000).setCycleLimitMode(CycleLimiter.Mode.FAST).build();
+        assertEquals(CycleLimiter.Mode.FAST, fast.getCycleLimiter().getMode());
+        assertEquals(6, fast.eval("local function f(n) if n == 0 then return 0 end return n + f(n - 1) end return f(3)").toint());
+    }
+
+    private static void assertLimit(LuaEvaluator evaluator, String code) {
+        try {
+            evaluator.eval(code);
+            fail("Limit not enforced");
+        } catch(LuaError e) {
+            assertTrue(e.toString(), isLimit(e));
+        }
+    }
+
+    static boolean isLimit(Throwable t) {
+        return findLimit(t) != null;
+    }
+
+    static Throwable findLimit(Throwable t) {
+        for(; t != null; t = t.getCause()) {
+            if(t instanceof CycleLimitExceededException || t instanceof TimeLimitExceededException ||
+                    t instanceof MemoryLimitExceededException) return t;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class JavaChunkLoaderTest {
+    @Test
+    public void bcelIsOnTheTestClasspath() {
+        assertTrue(JavaChunkLoader.AVAILABLE);
+        assertTrue(LuaEvaluator.builder().setLuaJCThreshold(0).build().isLuaJC());
+        assertFalse(LuaEvaluator.builder().build().isLuaJC());
+    }
+
+    @Test
+    public void limitsDisableLuaJC() {
+        assertFalse(LuaEvaluator.builder().setLuaJCThreshold(0).setCycleLimit(1000).build().isLuaJC());
+        assertFalse(LuaEvaluator.builder().setLuaJCThreshold(0).setCancellable(true).build().isLuaJC());
+    }
+
+    @Test
+    public void chunksAreCompiledAfterTheThreshold() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setLuaJCThreshold(2).build();
+        Prototype p = compile("local n = 0 for i = 1, 100 do n = n + i end return n");
+        assertTrue(evaluator.load(p, "sum") instanceof LuaClosure);
+        assertTrue(evaluator.load(p, "sum") instanceof LuaClosure);
+        LuaValue compiled = evaluator.load(p, "sum");
+        assertFalse(compiled instanceof LuaClosure);
+        assertEquals(5050, compiled.call().toint());
+        assertEquals(5050, evaluator.eval(p, "sum").toint());
+    }
+
+    @Test
+    public void compiledChunksSeeTheirGlobals() {
+        LuaEvaluator a = LuaEvaluator.builder().setLuaJCThreshold(0).build();
+        LuaEvaluator b = LuaEvaluator.builder().setLuaJCThreshold(0).build();
+        Prototype p = compile("return x");
+        a.set("x", 1);
+        b.set("x", 2);
+        assertEquals(1, a.eval(p, "x").toint());
+        assertEquals(2, b.eval(p, "x").toint());
+        //both share one generated class
+        assertSame(a.load(p, "x").getClass(), b.load(p, "x").getClass());
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentLoadsShareTheClass() throws InterruptedException {
+        Prototype p = compile("return 1 + 1");
+        Thread[] threads = new Thread[4];
+        Set<Class<?>> classes = new HashSet<>();
+        CountDownLatch start = new CountDownLatch(1);
+        for(int i = 0; i < threads.length; i++) {
+            LuaEvaluator evaluator = LuaEvaluator.builder().setLuaJCThreshold(0).build();
+            threads[i] = new Thread(()->{
+                try {
+                    start.await();
+                } catch(InterruptedException e) {
+                    return;
+                }
+                for(int j = 0; j < 100; j++) {
+                    LuaValue f = evaluator.load(p, "add");
+                    assertEquals(2, f.call().toint());
+                    synchronized(classes) {
+                        classes.add(f.getClass());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread t : threads) t.join();
+        assertEquals(1, classes.size());
+    }
+
+    @Test(timeout = 30000)
+    public void classesAreDroppedWithTheirPrototype() throws InterruptedException {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setLuaJCThreshold(0).build();
+        WeakReference<Class<?>> compiled = new WeakReference<>(evaluator.load(compile("return 'unloaded'"), "unloaded").getClass());
+        Prototype other = compile("return 0");
+        while(compiled.get() != null) {
+            System.gc();
+            Thread.sleep(10);
+            //entries of collected prototypes are removed by later loads
+            evaluator.load(other, "other");
+        }
+    }
+
+    private static Prototype compile(String code) {
+        return ChunkCache.compile(null, code, code, MetricsRecorder.NONE);
+    }
+}
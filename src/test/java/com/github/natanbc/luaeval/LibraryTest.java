@@ -0,0 +1,77 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+
+import static org.junit.Assert.*;
+
+public class LibraryTest {
+    @Test
+    public void lazyLibrariesLoadOnFirstAccess() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().build();
+        assertTrue(evaluator.getGlobals().rawget("math").isnil());
+        assertEquals(2, evaluator.eval("return math.max(1, 2)").toint());
+        assertTrue(evaluator.getGlobals().rawget("math").istable());
+    }
+
+    @Test
+    public void eagerLibrariesAreLoadedUpFront() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setLazyLibraries(false).build();
+        assertTrue(evaluator.getGlobals().rawget("math").istable());
+    }
+
+    @Test
+    public void lazyLibrariesCanBeRequired() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().build();
+        assertEquals("12", evaluator.eval("return require('table').concat({1, 2})").tojstring());
+        assertEquals(evaluator.eval("return require('table')"), evaluator.eval("return table"));
+    }
+
+    @Test
+    public void assigningAGlobalCancelsLoadingIt() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().build();
+        evaluator.eval("math = 5");
+        assertEquals(5, evaluator.eval("return math").toint());
+    }
+
+    @Test
+    public void removedLibrariesAreMissing() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().removeLibraries(LuaLibrary.OS, LuaLibrary.IO).build();
+        assertTrue(evaluator.eval("return os").isnil());
+        assertTrue(evaluator.eval("return io").isnil());
+        assertFalse(evaluator.eval("return string").isnil());
+    }
+
+    @Test
+    public void onlySelectedLibraries() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setLibraries(LuaLibrary.BASE, LuaLibrary.MATH).build();
+        assertEquals(3, evaluator.eval("return math.floor(3.5)").toint());
+        assertTrue(evaluator.eval("return table").isnil());
+    }
+
+    @Test
+    public void stringMethodsWorkWithLazyString() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().build();
+        assertEquals("ABC", evaluator.eval("return ('abc'):upper()").tojstring());
+    }
+
+    @Test
+    public void debugIsNeverExposed() {
+        assertTrue(LuaEvaluator.builder().build().eval("return debug").isnil());
+        assertTrue(LuaEvaluator.builder().setCycleLimit(1000).build().eval("return debug").isnil());
+    }
+
+    @Test
+    public void restoreUnloadsLazyLibrariesLoadedAfterTheSnapshot() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().build().snapshot();
+        evaluator.eval("math.pi = 3 x = 1");
+        evaluator.reset();
+        assertTrue(evaluator.eval("return x").isnil());
+        assertEquals(Math.PI, evaluator.eval("return math.pi").todouble(), 0);
+    }
+
+    @Test(expected = LuaError.class)
+    public void missingLibraryErrors() {
+        LuaEvaluator.builder().setLibraries(LuaLibrary.BASE).build().eval("return string.upper('a')");
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import com.github.natanbc.luaeval.utils.LuaHelper;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class MemoryLimitTest {
+    @Test
+    public void stringRepIsCapped() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setMaxStringLength(1000).build();
+        assertEquals(1000, evaluator.eval("return #string.rep('x', 1000)").toint());
+        assertEquals(1000, expectLimit(evaluator, "return string.rep('x', 1e9)").getLimit());
+        expectLimit(evaluator, "return string.rep('x', 500, 'yy')");
+    }
+
+    @Test
+    public void stringMethodsAreCapped() {
+        //luaj's string metatable is global, an evaluator without limits built first must not leak its library
+        LuaEvaluator.builder().build().eval("return ('x'):rep(2)");
+        LuaEvaluator evaluator = LuaEvaluator.builder().setMaxStringLength(1000).build();
+        expectLimit(evaluator, "return ('x'):rep(1e9)");
+        try {
+            evaluator.eval("return coroutine.wrap(function() return ('x'):rep(1e9) end)()");
+            fail("Limit not enforced");
+        } catch(LuaError e) {
+            //luaj only keeps the message of errors raised in coroutines
+            assertTrue(e.getMessage().contains("String length limit of 1000 exceeded"));
+        }
+        assertEquals(2000, LuaEvaluator.builder().build().eval("return #('x'):rep(2000)").toint());
+    }
+
+    @Test
+    public void callbacksKeepTheStringLimit() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setMaxStringLength(100).build();
+        LuaValue f = evaluator.eval("function rep(n) return ('x'):rep(n) end return rep");
+        assertEquals(100, evaluator.invoke(f, LuaValue.valueOf(100)).arg1().length());
+        expectLimit(()->evaluator.invoke(f, LuaValue.valueOf(1000)));
+        //called directly, outside of any evaluation
+        expectLimit(()->f.call(LuaValue.valueOf(1000)));
+        Repeater repeater = LuaHelper.implement(evaluator, Repeater.class, evaluator.eval("return { rep = rep }").checktable());
+        assertEquals(10, repeater.rep(10).length());
+        expectLimit(()->repeater.rep(1000));
+        Callbacks callbacks = new Callbacks();
+        evaluator.setObject("callbacks", callbacks);
+        evaluator.eval("callbacks.set(rep)");
+        expectLimit(()->callbacks.function.apply(1000));
+    }
+
+    @Test
+    public void tableConcatIsCapped() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setMaxStringLength(10).build();
+        assertEquals("a,b,c", evaluator.eval("return table.concat({'a', 'b', 'c'}, ',')").tojstring());
+        expectLimit(evaluator, "return table.concat({'aaaaa', 'bbbbb', 'c'})");
+    }
+
+    @Test
+    public void tableInsertIsCapped() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setMaxTableSize(10).build();
+        assertEquals(10, evaluator.eval("local t = {} for i = 1, 10 do table.insert(t, i) end return #t").toint());
+        assertEquals(10, expectLimit(evaluator, "local t = {} while true do table.insert(t, 1) end").getLimit());
+        //only table.insert is checked
+        assertEquals(20, evaluator.eval("local t = {} for i = 1, 20 do t[#t + 1] = i end return #t").toint());
+    }
+
+    @Test(timeout = 30000)
+    public void memoryLimit() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setMemoryLimit(10 << 20).build();
+        assertEquals(10 << 20, expectLimit(evaluator, "local t = {} while true do t[#t + 1] = {} end").getLimit());
+    }
+
+    @Test(timeout = 30000)
+    public void allocationsOfCoroutinesCount() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setMemoryLimit(10 << 20).build();
+        expectLimit(evaluator, "coroutine.wrap(function() local t = {} while true do t[#t + 1] = {} end end)()");
+    }
+
+    @Test
+    public void stringMethods() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().build();
+        assertEquals("ABC", evaluator.eval("return ('abc'):upper()").tojstring());
+        assertEquals("ABC", evaluator.eval("return coroutine.wrap(function() return ('abc'):upper() end)()").tojstring());
+        assertFalse(evaluator.eval("return getmetatable('')").toboolean());
+    }
+
+    @Test
+    public void stringMethodsComeFromTheRunningEvaluator() {
+        LuaEvaluator a = LuaEvaluator.builder().build();
+        LuaEvaluator b = LuaEvaluator.builder().build();
+        a.eval("function string.twice(s) return s .. s end");
+        assertEquals("xx", a.eval("return ('x'):twice()").tojstring());
+        assertTrue(b.eval("return ('x').twice == nil").toboolean());
+    }
+
+    private static MemoryLimitExceededException expectLimit(LuaEvaluator evaluator, String code) {
+        return expectLimit(()->evaluator.eval(code));
+    }
+
+    private static MemoryLimitExceededException expectLimit(Runnable code) {
+        try {
+            code.run();
+        } catch(RuntimeException e) {
+            Throwable limit = CycleLimiterTest.findLimit(e);
+            if(limit instanceof MemoryLimitExceededException) return (MemoryLimitExceededException)limit;
+            throw e;
+        }
+        throw new AssertionError("Limit not enforced");
+    }
+
+    public interface Repeater {
+        String rep(int n);
+    }
+
+    public static class Callbacks {
+        private Function<Integer, String> function;
+
+        public void set(Function<Integer, String> function) {
+            this.function = function;
+        }
+    }
+}
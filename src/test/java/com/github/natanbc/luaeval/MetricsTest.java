@@ -0,0 +1,92 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    @Test
+    public void evaluationsAreRecorded() {
+        Metrics metrics = new Metrics();
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCycleLimit(100000).build().setMetrics(metrics);
+        evaluator.eval("return 1 + 1");
+        try {
+            evaluator.eval("error('x')");
+            fail("Error not raised");
+        } catch(LuaError ignored) {
+        }
+        assertEquals(2, metrics.getEvalCount());
+        assertEquals(1, metrics.getEvalFailures());
+        assertTrue(metrics.getCompileCount() >= 1);
+        assertTrue(metrics.getInstructionsExecuted() > 0);
+        long[] histogram = metrics.getEvalLatencyHistogram();
+        long total = 0;
+        for(long c : histogram) total += c;
+        assertEquals(2, total);
+        assertTrue(metrics.getEvalLatencyPercentile(100) >= metrics.getEvalLatencyPercentile(50));
+    }
+
+    @Test
+    public void javaCallsAndWrapsAreRecorded() throws NoSuchMethodException {
+        Metrics metrics = new Metrics();
+        LuaEvaluator evaluator = new LuaEvaluator().setMetrics(metrics);
+        evaluator.setObject("list", new ArrayList<>());
+        evaluator.eval("list.add(1) list.add(2) return list.size()");
+        assertEquals(3, metrics.getJavaCallCount());
+        assertEquals(1, metrics.getWrapCount());
+        assertEquals(Long.valueOf(2), metrics.getJavaCallCounts().get(ArrayList.class.getMethod("add", Object.class).toGenericString()));
+    }
+
+    @Test
+    public void limitTripsAreRecorded() {
+        Metrics metrics = new Metrics();
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCycleLimit(1000).build().setMetrics(metrics);
+        try {
+            evaluator.eval("while true do end");
+            fail("Limit not enforced");
+        } catch(RuntimeException ignored) {
+        }
+        assertEquals(1, metrics.getCycleLimitTrips());
+        assertEquals(0, metrics.getTimeLimitTrips());
+        metrics.reset();
+        assertEquals(0, metrics.getCycleLimitTrips());
+        assertEquals(0, metrics.getEvalCount());
+    }
+
+    @Test
+    public void nestedEvaluationsCountOnce() {
+        Metrics metrics = new Metrics();
+        LuaEvaluator evaluator = new LuaEvaluator().setMetrics(metrics);
+        evaluator.setObject("evaluator", evaluator);
+        evaluator.eval("return evaluator.eval('return 1')");
+        assertEquals(1, metrics.getEvalCount());
+    }
+
+    @Test
+    public void disabledByDefault() {
+        assertSame(MetricsRecorder.NONE, new LuaEvaluator().getMetrics());
+        assertSame(MetricsRecorder.NONE, new LuaEvaluator().setMetrics(null).getMetrics());
+    }
+
+    @Test
+    public void registersOverJmx() throws Exception {
+        Metrics metrics = new Metrics().register("metrics-test");
+        ObjectName name = new ObjectName("com.github.natanbc.luaeval:type=Metrics,name=" + ObjectName.quote("metrics-test"));
+        try {
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+            try {
+                new Metrics().register("metrics-test");
+                fail("Registered twice");
+            } catch(IllegalStateException ignored) {
+            }
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.natanbc.luaeval;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimeLimitTest {
+    @Test(timeout = 10000)
+    public void wallClockLimit() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setTimeLimit(100, TimeUnit.MILLISECONDS).build();
+        TimeLimitExceededException e = expectLimit(evaluator, "while true do end");
+        assertFalse(e.isCpuTime());
+        assertEquals(100, e.getTimeLimit(TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void deadlinesRestartOnEachEvaluation() throws InterruptedException {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setTimeLimit(200, TimeUnit.MILLISECONDS).build();
+        evaluator.eval("for i = 1, 1000 do end");
+        Thread.sleep(300);
+        assertEquals(1, evaluator.eval("for i = 1, 1000 do end return 1").toint());
+    }
+
+    @Test(timeout = 10000)
+    public void perCallTimeBudget() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCancellable(true).build();
+        try {
+            evaluator.eval("while true do end", "loop", Budget.time(50, TimeUnit.MILLISECONDS));
+            fail("Budget not enforced");
+        } catch(LuaError e) {
+            assertTrue(CycleLimiterTest.findLimit(e) instanceof TimeLimitExceededException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void cpuTimeLimit() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCpuTimeLimit(100, TimeUnit.MILLISECONDS).build();
+        assertTrue(expectLimit(evaluator, "while true do end").isCpuTime());
+    }
+
+    @Test(timeout = 10000)
+    public void cpuTimeOfCoroutinesCounts() {
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCpuTimeLimit(100, TimeUnit.MILLISECONDS).build();
+        assertTrue(expectLimit(evaluator, "coroutine.wrap(function() while true do local t = {} end end)()").isCpuTime());
+        evaluator = LuaEvaluator.builder().setCpuTimeLimit(100, TimeUnit.MILLISECONDS).build();
+        assertTrue(expectLimit(evaluator, "local co = coroutine.create(function() while true do coroutine.yield() end end) " +
+                "while true do coroutine.resume(co) end").isCpuTime());
+    }
+
+    @Test(timeout = 10000)
+    public void shortCoroutineBurstsAreCharged() {
+        //the coroutine spends its time in a few expensive instructions, checks almost always land on the main thread
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCpuTimeLimit(200, TimeUnit.MILLISECONDS).build();
+        assertTrue(expectLimit(evaluator, "local co = coroutine.wrap(function() while true do " +
+                "local s = string.rep('x', 100000):upper() coroutine.yield() end end) " +
+                "while true do co() end").isCpuTime());
+    }
+
+    private static TimeLimitExceededException expectLimit(LuaEvaluator evaluator, String code) {
+        try {
+            evaluator.eval(code);
+        } catch(LuaError e) {
+            Throwable limit = CycleLimiterTest.findLimit(e);
+            if(limit instanceof TimeLimitExceededException) return (TimeLimitExceededException)limit;
+            throw e;
+        }
+        throw new AssertionError("Limit not enforced");
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.natanbc.luaeval.scriptengine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntBinaryOperator;
+
+import static org.junit.Assert.*;
+
+public class EngineTest {
+    private ScriptEngine engine;
+
+    @Before
+    public void setup() {
+        engine = new Factory().getScriptEngine();
+    }
+
+    @Test
+    public void evalReturnsJavaValues() throws ScriptException {
+        assertEquals(3, engine.eval("return 1 + 2"));
+        assertEquals("ab", engine.eval("return 'a' .. 'b'"));
+        assertNull(engine.eval("return nil"));
+    }
+
+    @Test
+    public void bindingsAreVisible() throws ScriptException {
+        engine.put("x", 20);
+        assertEquals(21, engine.eval("return x + 1"));
+    }
+
+    @Test
+    public void compiledScriptsRunWithFreshBindings() throws ScriptException {
+        CompiledScript script = ((Compilable)engine).compile("return x * 2");
+        SimpleBindings b = new SimpleBindings();
+        b.put("x", 4);
+        assertEquals(8, script.eval(b));
+        b.put("x", 5);
+        assertEquals(10, script.eval(b));
+        assertSame(engine, script.getEngine());
+    }
+
+    @Test(expected = ScriptException.class)
+    public void compileErrorsAreScriptExceptions() throws ScriptException {
+        ((Compilable)engine).compile("return +");
+    }
+
+    @Test
+    public void invokeFunction() throws Exception {
+        engine.eval("function add(a, b) return a + b end");
+        assertEquals(5, ((Invocable)engine).invokeFunction("add", 2, 3));
+    }
+
+    @Test(expected = NoSuchMethodException.class)
+    public void invokeMissingFunction() throws Exception {
+        engine.eval("x = 1");
+        ((Invocable)engine).invokeFunction("missing");
+    }
+
+    @Test
+    public void invokeMethod() throws Exception {
+        Object obj = engine.eval("return { n = 10, get = function(self, d) return self.n + d end }");
+        assertEquals(12, ((Invocable)engine).invokeMethod(obj, "get", 2));
+    }
+
+    @Test
+    public void getInterface() throws Exception {
+        engine.eval("function applyAsInt(a, b) return a * b end");
+        IntBinaryOperator op = ((Invocable)engine).getInterface(IntBinaryOperator.class);
+        assertNotNull(op);
+        assertEquals(12, op.applyAsInt(3, 4));
+    }
+
+    @Test
+    public void engineIsRegistered() {
+        assertTrue(new javax.script.ScriptEngineManager().getEngineByName("luaeval") instanceof Engine);
+    }
+
+    @Test
+    public void closeReleasesEvaluators() throws ScriptException {
+        Factory factory = new Factory();
+        Engine engine = (Engine)factory.getScriptEngine();
+        engine.eval("x = 1");
+        assertEquals(0, factory.getEvaluatorPool().getIdleCount());
+        engine.close();
+        assertEquals(1, factory.getEvaluatorPool().getIdleCount());
+        //still usable, with a fresh evaluator
+        assertNull(engine.eval("return x"));
+    }
+
+    @Test
+    public void threadsKeepTheirOwnEvaluators() throws Exception {
+        Engine engine = (Engine)new Factory(true).getScriptEngine();
+        engine.eval("function who() return 'main' end");
+        AtomicReference<Object> seen = new AtomicReference<>();
+        Thread t = new Thread(()->{
+            try {
+                engine.eval("function who() return 'worker' end");
+                seen.set(engine.invokeFunction("who"));
+            } catch(Exception e) {
+                seen.set(e);
+            }
+        });
+        t.start();
+        t.join();
+        assertEquals("worker", seen.get());
+        assertEquals("main", engine.invokeFunction("who"));
+    }
+
+    @Test(timeout = 30000)
+    public void evaluatorsOfDeadThreadsAreReleased() throws Exception {
+        Factory factory = new Factory(true);
+        Engine engine = (Engine)factory.getScriptEngine();
+        engine.eval("return 1");
+        CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread(()->{
+            try {
+                engine.eval("return 2");
+            } catch(ScriptException e) {
+                throw new RuntimeException(e);
+            } finally {
+                done.countDown();
+            }
+        });
+        t.start();
+        done.await();
+        t.join();
+        t = null;
+        //the next evaluation on any thread gives the dead thread's evaluator back
+        while(factory.getEvaluatorPool().getIdleCount() == 0) {
+            System.gc();
+            Thread.sleep(10);
+            engine.eval("return 3");
+        }
+    }
+
+    @Test
+    public void sharedEngineAcrossThreads() throws Exception {
+        Engine engine = (Engine)new Factory().getScriptEngine();
+        Thread[] threads = new Thread[4];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(()->{
+                try {
+                    for(int j = 0; j < 200; j++) engine.eval("return 1");
+                } catch(Throwable e) {
+                    failure.set(e);
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) t.join();
+        assertNull(failure.get());
+        engine.close();
+        assertTrue(engine.getFactory() instanceof Factory);
+    }
+}
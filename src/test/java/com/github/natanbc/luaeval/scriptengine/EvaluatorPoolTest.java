@@ -0,0 +1,116 @@
+package com.github.natanbc.luaeval.scriptengine;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.junit.Test;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static org.junit.Assert.*;
+
+public class EvaluatorPoolTest {
+    @Test
+    public void reusesReleasedEvaluators() {
+        EvaluatorPool pool = new EvaluatorPool();
+        LuaEvaluator e = pool.borrow(-1);
+        pool.release(e);
+        assertSame(e, pool.borrow(-1));
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(2, pool.getBorrowCount());
+    }
+
+    @Test
+    public void releaseRestoresGlobals() {
+        EvaluatorPool pool = new EvaluatorPool();
+        LuaEvaluator e = pool.borrow(-1);
+        e.eval("x = 1 string.upper = nil");
+        pool.release(e);
+        LuaEvaluator again = pool.borrow(-1);
+        assertSame(e, again);
+        assertTrue(again.eval("return x").isnil());
+        assertEquals("A", again.eval("return string.upper('a')").tojstring());
+    }
+
+    @Test
+    public void releaseRefillsCycles() {
+        EvaluatorPool pool = new EvaluatorPool();
+        LuaEvaluator e = pool.borrow(100000);
+        e.eval("for i = 1, 1000 do end");
+        assertTrue(e.getCyclesUsed() > 0);
+        pool.release(e);
+        assertEquals(0, pool.borrow(100000).getCyclesUsed());
+    }
+
+    @Test
+    public void separatesCycleLimits() {
+        EvaluatorPool pool = new EvaluatorPool();
+        pool.release(pool.borrow(1000));
+        LuaEvaluator e = pool.borrow(2000);
+        assertEquals(2000, e.getCycleLimit());
+        assertEquals(2, pool.getCreatedCount());
+    }
+
+    @Test
+    public void boundsIdleEvaluators() {
+        EvaluatorPool pool = new EvaluatorPool(1, 1, TimeUnit.MINUTES);
+        LuaEvaluator a = pool.borrow(-1);
+        LuaEvaluator b = pool.borrow(-1);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, pool.getEvictedCount());
+    }
+
+    @Test
+    public void prewarm() {
+        EvaluatorPool pool = new EvaluatorPool().prewarm(-1, 3);
+        assertEquals(3, pool.getIdleCount());
+        pool.borrow(-1);
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(3, pool.getCreatedCount());
+        pool.clear();
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void evictsExpiredEvaluators() throws InterruptedException {
+        EvaluatorPool pool = new EvaluatorPool(8, 1, TimeUnit.MILLISECONDS);
+        pool.release(pool.borrow(-1));
+        Thread.sleep(5);
+        assertEquals(1, pool.evictIdle());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void keepsEvaluatorsReferencedFromJava() {
+        EvaluatorPool pool = new EvaluatorPool();
+        LuaEvaluator e = pool.borrow(-1);
+        e.markJavaReferences();
+        pool.release(e);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void interfacesSurviveLaterEvaluations() throws Exception {
+        ScriptEngine engine = new Factory().getScriptEngine();
+        engine.eval("n = 41 function getAsInt() n = n + 1 return n end");
+        IntSupplier supplier = ((Invocable)engine).getInterface(IntSupplier.class);
+        assertEquals(42, supplier.getAsInt());
+        //these used to reset the evaluator backing the interface and lend it to the next evaluation
+        engine.eval("n = 100");
+        engine.eval("return 1");
+        assertEquals(43, supplier.getAsInt());
+    }
+
+    @Test
+    public void functionsSurviveLaterEvaluations() throws Exception {
+        ScriptEngine engine = new Factory().getScriptEngine();
+        Object f = engine.eval("local t = {} return function(v) t[#t + 1] = v return #t end");
+        engine.eval("return 1");
+        engine.eval("return 2");
+        Object obj = engine.eval("return { call = function(self, g) return g(5) end }");
+        assertEquals(1, ((Invocable)engine).invokeMethod(obj, "call", f));
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.AccessPolicy;
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class ClassBindingTest {
+    @Test
+    public void bindingsAreShared() {
+        ClassBinding a = ClassBinding.of(ArrayList.class, new ArrayList<>(), AccessPolicy.EMPTY);
+        ClassBinding b = ClassBinding.of(ArrayList.class, new ArrayList<>(), AccessPolicy.EMPTY);
+        assertSame(a, b);
+        assertSame(a.methods(LuaString.valueOf("add")), b.methods(LuaString.valueOf("add")));
+    }
+
+    @Test
+    public void staticAndClassObjectBindingsAreSeparate() {
+        ClassBinding instance = ClassBinding.of(Integer.class, 1, AccessPolicy.EMPTY);
+        ClassBinding statics = ClassBinding.of(Integer.class, null, AccessPolicy.EMPTY);
+        ClassBinding classObject = ClassBinding.of(Class.class, Integer.class, AccessPolicy.EMPTY);
+        assertNotSame(instance, statics);
+        assertNotNull(instance.methods(LuaString.valueOf("intValue")));
+        assertNull(statics.methods(LuaString.valueOf("intValue")));
+        assertNotNull(statics.methods(LuaString.valueOf("parseInt")));
+        assertTrue(classObject.isClassObject);
+        assertNotNull(classObject.methods(LuaString.valueOf("getName")));
+    }
+
+    @Test
+    public void policiesGetTheirOwnBindings() throws Exception {
+        AccessPolicy policy = AccessPolicy.EMPTY.block(ArrayList.class.getMethod("clear"));
+        ClassBinding open = ClassBinding.of(ArrayList.class, new ArrayList<>(), AccessPolicy.EMPTY);
+        ClassBinding restricted = ClassBinding.of(ArrayList.class, new ArrayList<>(), policy);
+        assertNotSame(open, restricted);
+        assertNotNull(open.methods(LuaString.valueOf("clear")));
+        assertNull(restricted.methods(LuaString.valueOf("clear")));
+        assertSame(restricted, ClassBinding.of(ArrayList.class, new ArrayList<>(), policy));
+        assertSame(ClassBinding.constructors(ArrayList.class, policy), ClassBinding.constructors(ArrayList.class, policy));
+    }
+
+    @Test(timeout = 30000)
+    public void bindingsDontKeepTheirPolicyAlive() throws Exception {
+        AccessPolicy policy = AccessPolicy.EMPTY.block(String.class.getMethod("trim"));
+        ClassBinding.of(String.class, "x", policy);
+        ClassBinding.constructors(String.class, policy);
+        WeakReference<AccessPolicy> ref = new WeakReference<>(policy);
+        policy = null;
+        while(ref.get() != null) {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void blockedClassesAreFlagged() {
+        AccessPolicy policy = AccessPolicy.EMPTY.blockClass(Thread.class);
+        assertTrue(ClassBinding.of(Thread.class, Thread.currentThread(), policy).isBlocked);
+        assertFalse(ClassBinding.of(Thread.class, Thread.currentThread(), AccessPolicy.EMPTY).isBlocked);
+    }
+
+    @Test
+    public void blockedClassesCannotBeWrapped() {
+        LuaEvaluator evaluator = new LuaEvaluator().blockClass(Thread.class);
+        try {
+            evaluator.toLua(new Thread());
+            fail("Blocked class was wrapped");
+        } catch(LuaError expected) {
+        }
+    }
+
+    @Test
+    public void nonPublicClassesUsePublicSupertypes() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        ArrayList<Integer> list = new ArrayList<>();
+        list.add(5);
+        Iterator<Integer> it = list.iterator();
+        evaluator.setObject("it", it);
+        assertEquals(5, evaluator.eval("assert(it:hasNext()) return it:next()").toint());
+    }
+
+    @Test
+    public void evaluatorsShareBindingsAcrossPolicies() {
+        LuaEvaluator a = new LuaEvaluator();
+        LuaEvaluator b = new LuaEvaluator();
+        a.setObject("list", new ArrayList<>());
+        b.setObject("list", new ArrayList<>());
+        a.eval("list:add(1)");
+        b.eval("list:add(2)");
+        assertSame(ClassBinding.of(ArrayList.class, new ArrayList<>(), a.getAccessPolicy()),
+                ClassBinding.of(ArrayList.class, new ArrayList<>(), b.getAccessPolicy()));
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+
+import static org.junit.Assert.*;
+
+public class FieldAccessorTest {
+    @Test
+    public void readsAndWritesPrimitives() {
+        Fields fields = new Fields();
+        LuaEvaluator evaluator = evaluator(fields);
+        evaluator.eval("f.i = 5 f.l = 2^40 f.d = 1.5 f.fl = 0.25 f.s = 7 f.b = -3 f.z = true f.c = 'q'");
+        assertEquals(5, fields.i);
+        assertEquals(1L << 40, fields.l);
+        assertEquals(1.5, fields.d, 0);
+        assertEquals(0.25f, fields.fl, 0);
+        assertEquals(7, fields.s);
+        assertEquals(-3, fields.b);
+        assertTrue(fields.z);
+        assertEquals('q', fields.c);
+        assertEquals(5 + 7 - 3, evaluator.eval("return f.i + f.s + f.b").toint());
+        assertEquals("q", evaluator.eval("return f.c").tojstring());
+        assertTrue(evaluator.eval("return f.z").toboolean());
+    }
+
+    @Test
+    public void readsAndWritesObjects() {
+        Fields fields = new Fields();
+        LuaEvaluator evaluator = evaluator(fields);
+        assertTrue(evaluator.eval("return f.str").isnil());
+        evaluator.eval("f.str = 'abc' f.boxed = 3");
+        assertEquals("abc", fields.str);
+        assertEquals(Integer.valueOf(3), fields.boxed);
+        evaluator.eval("f.boxed = nil");
+        assertNull(fields.boxed);
+        fields.other = new Fields();
+        fields.other.i = 9;
+        assertEquals(9, evaluator.eval("return f.other.i").toint());
+    }
+
+    @Test
+    public void rejectsWrongTypes() {
+        LuaEvaluator evaluator = evaluator(new Fields());
+        assertError(evaluator, "f.i = 'x'");
+        assertError(evaluator, "f.z = 1");
+        assertError(evaluator, "f.c = 'ab'");
+        assertError(evaluator, "f.str = {}");
+    }
+
+    @Test
+    public void finalFieldsAreReadOnly() {
+        Fields fields = new Fields();
+        LuaEvaluator evaluator = evaluator(fields);
+        assertEquals(1, evaluator.eval("return f.constant").toint());
+        assertError(evaluator, "f.constant = 2");
+        assertEquals(1, fields.constant);
+    }
+
+    @Test
+    public void staticFields() throws Exception {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        FieldAccessor accessor = FieldAccessor.of(Fields.class.getField("counter"));
+        accessor.write(evaluator, null, LuaValue.valueOf(11));
+        assertEquals(11, Fields.counter);
+        assertEquals(11, accessor.read(evaluator, null).toint());
+    }
+
+    @Test
+    public void unknownKeysAreStoredInTheWrapper() {
+        LuaEvaluator evaluator = evaluator(new Fields());
+        assertEquals(4, evaluator.eval("f.extra = 4 return f.extra").toint());
+    }
+
+    private static LuaEvaluator evaluator(Fields fields) {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        evaluator.setObject("f", fields);
+        return evaluator;
+    }
+
+    private static void assertError(LuaEvaluator evaluator, String code) {
+        try {
+            evaluator.eval(code);
+            fail(code + " didn't fail");
+        } catch(LuaError expected) {
+        }
+    }
+
+    public static class Fields {
+        public static int counter;
+
+        public final int constant = 1;
+        public int i;
+        public long l;
+        public double d;
+        public float fl;
+        public short s;
+        public byte b;
+        public boolean z;
+        public char c;
+        public String str;
+        public Integer boxed;
+        public Fields other;
+    }
+}
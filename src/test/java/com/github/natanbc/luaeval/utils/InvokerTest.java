@@ -0,0 +1,79 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.*;
+
+public class InvokerTest {
+    @Test
+    public void invokesMethodsAndConstructors() throws Throwable {
+        assertEquals(3, Invoker.of(String.class.getMethod("length")).invoke("abc", new Object[0]));
+        assertEquals(12, Invoker.of(Integer.class.getMethod("parseInt", String.class)).invoke(null, new Object[]{"12"}));
+        assertEquals("ab", Invoker.of(StringBuilder.class.getConstructor(String.class)).invoke(null, new Object[]{"ab"}).toString());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rethrowsUnwrapped() throws Throwable {
+        Invoker.of(Integer.class.getMethod("parseInt", String.class)).invoke(null, new Object[]{"x"});
+    }
+
+    @Test
+    public void scriptedClassesCanBeUnloaded() throws Exception {
+        WeakReference<ClassLoader> loader = callThroughIsolatedLoader();
+        for(int i = 0; i < 50 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("Class loader still reachable", loader.get());
+    }
+
+    private static WeakReference<ClassLoader> callThroughIsolatedLoader() throws Exception {
+        ClassLoader loader = new IsolatedLoader(Scripted.class.getName());
+        Class<?> type = loader.loadClass(Scripted.class.getName());
+        assertNotSame(Scripted.class, type);
+        LuaEvaluator evaluator = new LuaEvaluator();
+        evaluator.setObject("obj", type.getConstructor().newInstance());
+        assertEquals(42, evaluator.eval("return obj.answer()").toint());
+        return new WeakReference<>(loader);
+    }
+
+    public static class Scripted {
+        public int answer() {
+            return 42;
+        }
+    }
+
+    private static class IsolatedLoader extends ClassLoader {
+        private final String name;
+
+        IsolatedLoader(String name) {
+            super(InvokerTest.class.getClassLoader());
+            this.name = name;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(!name.equals(this.name)) return super.loadClass(name, resolve);
+            synchronized(getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if(c != null) return c;
+                try(InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int r;
+                    while((r = in.read(buffer)) != -1) out.write(buffer, 0, r);
+                    byte[] bytes = out.toByteArray();
+                    return defineClass(name, bytes, 0, bytes.length);
+                } catch(IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+
+import static org.junit.Assert.*;
+
+public class LuaArrayTest {
+    @Test
+    public void viewsDontCopy() {
+        int[] array = {1, 2, 3};
+        LuaEvaluator evaluator = evaluator(array);
+        evaluator.eval("a[2] = 20");
+        assertEquals(20, array[1]);
+        array[2] = 30;
+        assertEquals(30, evaluator.eval("return a[3]").toint());
+    }
+
+    @Test
+    public void lengthAndIteration() {
+        LuaEvaluator evaluator = evaluator(new double[]{0.5, 1.5, 2});
+        assertEquals(3, evaluator.eval("return #a").toint());
+        assertEquals(3, evaluator.eval("return a.length").toint());
+        assertEquals(4, evaluator.eval("local s = 0 for _, v in ipairs(a) do s = s + v end return s").todouble(), 0);
+        assertError(evaluator, "a.length = 1");
+    }
+
+    @Test
+    public void outOfBoundsReadsAreNil() {
+        LuaEvaluator evaluator = evaluator(new int[2]);
+        assertTrue(evaluator.eval("return a[0]").isnil());
+        assertTrue(evaluator.eval("return a[3]").isnil());
+        assertTrue(evaluator.eval("return a[1.5]").isnil());
+        assertEquals(0, evaluator.eval("return a[2.0]").toint());
+    }
+
+    @Test
+    public void elementTypes() {
+        long[] longs = new long[1];
+        byte[] bytes = new byte[1];
+        boolean[] booleans = new boolean[1];
+        char[] chars = new char[1];
+        String[] strings = new String[1];
+        LuaEvaluator evaluator = new LuaEvaluator();
+        evaluator.setObject("l", longs).setObject("b", bytes).setObject("z", booleans).setObject("c", chars).setObject("s", strings);
+        evaluator.eval("l[1] = 2^40 b[1] = 100 z[1] = true c[1] = 'x' s[1] = 'str'");
+        assertEquals(1L << 40, longs[0]);
+        assertEquals(100, bytes[0]);
+        assertTrue(booleans[0]);
+        assertEquals('x', chars[0]);
+        assertEquals("str", strings[0]);
+        assertEquals("x", evaluator.eval("return c[1]").tojstring());
+        assertError(evaluator, "z[1] = 1");
+        assertError(evaluator, "c[1] = 'xy'");
+        assertError(evaluator, "b[1] = 'x'");
+    }
+
+    @Test
+    public void bulkOperations() {
+        int[] array = {1, 2, 3, 4};
+        LuaEvaluator evaluator = evaluator(array);
+        assertEquals(10, evaluator.eval("return a.sum()").toint());
+        assertEquals(5, evaluator.eval("return a.sum(2, 3)").toint());
+        assertEquals(2, evaluator.eval("return #a.slice(2, 3)").toint());
+        evaluator.eval("local c = a.clone() c[1] = 100");
+        assertEquals(1, array[0]);
+        evaluator.eval("a.fill(0, 3, 4)");
+        assertArrayEquals(new int[]{1, 2, 0, 0}, array);
+        evaluator.eval("a.copy(1, 3, 2)");
+        assertArrayEquals(new int[]{1, 2, 1, 2}, array);
+        assertError(evaluator, "a.sum(0, 4)");
+        assertError(evaluator, "a.copy(1, 4, 2)");
+    }
+
+    @Test
+    public void sumOnlyForNumbers() {
+        assertError(evaluator(new String[1]), "a.sum()");
+    }
+
+    private static LuaEvaluator evaluator(Object array) {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        evaluator.setObject("a", array);
+        return evaluator;
+    }
+
+    private static void assertError(LuaEvaluator evaluator, String code) {
+        try {
+            evaluator.eval(code);
+            fail(code + " didn't fail");
+        } catch(LuaError expected) {
+        }
+    }
+}
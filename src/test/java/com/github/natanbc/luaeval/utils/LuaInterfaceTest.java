@@ -0,0 +1,94 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.junit.Test;
+import org.luaj.vm2.LuaTable;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LuaInterfaceTest {
+    @Test
+    public void generatedInterfacesAreOptIn() {
+        assertFalse(new LuaEvaluator().isGeneratedInterfaces());
+        assertFalse(LuaEvaluator.builder().build().isGeneratedInterfaces());
+        Shape shape = implement(new LuaEvaluator(), Shape.class, "return { area = function() return 4 end }");
+        assertTrue(Proxy.isProxyClass(shape.getClass()));
+        Shape generated = implement(LuaEvaluator.builder().setGeneratedInterfaces(true).build(), Shape.class,
+                "return { area = function() return 4 end }");
+        assertFalse(Proxy.isProxyClass(generated.getClass()));
+        assertEquals(4, generated.area());
+    }
+
+    @Test
+    public void defaultMethods() {
+        for(LuaEvaluator evaluator : evaluators()) {
+            Shape shape = implement(evaluator, Shape.class, "return { area = function() return 4 end }");
+            assertEquals(4, shape.area());
+            assertEquals(8, shape.doubled());
+            Shape overridden = implement(evaluator, Shape.class,
+                    "return { area = function() return 4 end, doubled = function() return 1 end }");
+            assertEquals(1, overridden.doubled());
+        }
+    }
+
+    @Test
+    public void jdkDefaultMethods() {
+        for(LuaEvaluator evaluator : evaluators()) {
+            Comparator<Object> c = implement(evaluator, Comparator.class,
+                    "return { compare = function(a, b) return a - b end }");
+            List<Object> list = Arrays.asList(1, 3, 2);
+            list.sort(c.reversed());
+            assertEquals(Arrays.asList(3, 2, 1), list);
+        }
+    }
+
+    @Test
+    public void methodsInheritedThroughSeveralInterfaces() {
+        for(LuaEvaluator evaluator : evaluators()) {
+            Both both = implement(evaluator, Both.class, "return { value = function() return 7 end }");
+            assertEquals(7, both.value());
+            assertEquals(7, ((Left)both).value());
+            assertEquals(7, ((Right)both).value());
+        }
+    }
+
+    @Test
+    public void objectMethods() {
+        Shape shape = implement(new LuaEvaluator(), Shape.class, "return { area = function() return 4 end }");
+        assertEquals(shape, shape);
+        assertEquals(System.identityHashCode(shape), shape.hashCode());
+        assertNotNull(shape.toString());
+    }
+
+    private static LuaEvaluator[] evaluators() {
+        return new LuaEvaluator[]{new LuaEvaluator(), LuaEvaluator.builder().setGeneratedInterfaces(true).build()};
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T implement(LuaEvaluator evaluator, Class<?> type, String code) {
+        return (T)LuaHelper.implement(evaluator, type, (LuaTable)evaluator.eval(code));
+    }
+
+    public interface Shape {
+        int area();
+
+        default int doubled() {
+            return area() * 2;
+        }
+    }
+
+    public interface Left {
+        int value();
+    }
+
+    public interface Right {
+        int value();
+    }
+
+    public interface Both extends Left, Right {}
+}
@@ -0,0 +1,93 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.junit.Test;
+import org.luaj.vm2.LuaFunction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class LuaLambdaTest {
+    @Test
+    public void primitiveAdapters() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        IntBinaryOperator add = LuaLambda.toLambda(evaluator, IntBinaryOperator.class, function(evaluator, "return function(a, b) return a + b end"));
+        assertEquals(5, add.applyAsInt(2, 3));
+        LongSupplier big = LuaLambda.toLambda(evaluator, LongSupplier.class, function(evaluator, "return function() return 2^40 end"));
+        assertEquals(1L << 40, big.getAsLong());
+        DoubleUnaryOperator half = LuaLambda.toLambda(evaluator, DoubleUnaryOperator.class, function(evaluator, "return function(x) return x / 2 end"));
+        assertEquals(1.25, half.applyAsDouble(2.5), 0);
+    }
+
+    @Test
+    public void objectAdapters() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        Predicate<Object> isString = LuaLambda.toLambda(evaluator, Predicate.class, function(evaluator, "return function(x) return type(x) == 'string' end"));
+        assertTrue(isString.test("a"));
+        assertFalse(isString.test(1));
+        @SuppressWarnings("unchecked")
+        Function<Object, Object> size = LuaLambda.toLambda(evaluator, Function.class, function(evaluator, "return function(list) return list.size() end"));
+        assertEquals(2, size.apply(Arrays.asList(1, 2)));
+        @SuppressWarnings("unchecked")
+        Comparator<Object> desc = LuaLambda.toLambda(evaluator, Comparator.class, function(evaluator, "return function(a, b) return b - a end"));
+        List<Object> list = new ArrayList<>(Arrays.asList(1, 3, 2));
+        list.sort(desc);
+        assertEquals(Arrays.asList(3, 2, 1), list);
+    }
+
+    @Test
+    public void customFunctionalInterfaces() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        Greeter greeter = LuaLambda.toLambda(evaluator, Greeter.class, function(evaluator, "return function(name) return 'hi ' .. name end"));
+        assertEquals("hi lua", greeter.greet("lua"));
+        assertEquals("hi lua!", greeter.loud("lua"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void nonFunctionalInterfacesAreRejected() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        LuaLambda.toLambda(evaluator, List.class, function(evaluator, "return function() end"));
+    }
+
+    @Test
+    public void passedToJavaMethods() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        evaluator.setObject("target", new Target());
+        assertEquals(12, evaluator.eval("return target.reduce(function(a, b) return a * b end)").toint());
+        assertEquals("hi x", evaluator.eval("return target.greet(function(n) return 'hi ' .. n end)").tojstring());
+    }
+
+    private static LuaFunction function(LuaEvaluator evaluator, String code) {
+        return (LuaFunction)evaluator.eval(code);
+    }
+
+    @FunctionalInterface
+    public interface Greeter {
+        String greet(String name);
+
+        default String loud(String name) {
+            return greet(name) + "!";
+        }
+
+        boolean equals(Object other);
+    }
+
+    public static class Target {
+        public int reduce(IntBinaryOperator op) {
+            return op.applyAsInt(op.applyAsInt(2, 3), 2);
+        }
+
+        public String greet(Greeter greeter) {
+            return greeter.greet("x");
+        }
+    }
+}
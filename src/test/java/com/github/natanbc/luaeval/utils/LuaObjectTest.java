@@ -0,0 +1,41 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LuaObjectTest {
+    @Test
+    public void methodsAreBoundOnce() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        evaluator.setObject("list", new ArrayList<>());
+        assertTrue(evaluator.eval("return rawequal(list.add, list.add)").toboolean());
+        assertTrue(evaluator.eval("return list.size == list.size").toboolean());
+    }
+
+    @Test
+    public void methodsAreBoundToTheirInstance() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        List<Object> a = new ArrayList<>();
+        List<Object> b = new ArrayList<>();
+        evaluator.setObject("a", a);
+        evaluator.setObject("b", b);
+        assertFalse(evaluator.eval("return rawequal(a.add, b.add)").toboolean());
+        evaluator.eval("local add = a.add add(1) add(2) b.add(3)");
+        assertEquals(2, a.size());
+        assertEquals(1, b.size());
+    }
+
+    @Test
+    public void fieldsAndMethods() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        evaluator.setObject("list", new ArrayList<>());
+        assertEquals(3, evaluator.eval("list.add('x') list.add('y') list.add('z') return list.size()").toint());
+        assertEquals("y", evaluator.eval("return list.get(1)").tojstring());
+        assertTrue(evaluator.eval("return list.missing").isnil());
+    }
+}
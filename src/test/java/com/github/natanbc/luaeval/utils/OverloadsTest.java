@@ -0,0 +1,101 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import com.github.natanbc.luaeval.MetricsRecorder;
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+
+import java.lang.reflect.Executable;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class OverloadsTest {
+    @Test
+    public void picksOverloadByLuaType() {
+        LuaEvaluator evaluator = evaluator();
+        assertEquals("int", evaluator.eval("return o.f(1)").tojstring());
+        assertEquals("double", evaluator.eval("return o.f(1.5)").tojstring());
+        assertEquals("String", evaluator.eval("return o.f('abc')").tojstring());
+        assertEquals("boolean", evaluator.eval("return o.f(true)").tojstring());
+        //strings match String better than char
+        assertEquals("String", evaluator.eval("return o.f('a')").tojstring());
+        assertEquals("Object", evaluator.eval("return o.f({})").tojstring());
+    }
+
+    @Test
+    public void prefersFixedArity() {
+        LuaEvaluator evaluator = evaluator();
+        assertEquals("int,int", evaluator.eval("return o.g(1, 2)").tojstring());
+        assertEquals("varargs 3", evaluator.eval("return o.g(1, 2, 3)").tojstring());
+        assertEquals("varargs 0", evaluator.eval("return o.g()").tojstring());
+    }
+
+    @Test
+    public void cachedChoicesMatchFreshResolution() {
+        LuaEvaluator evaluator = evaluator();
+        for(int i = 0; i < 3; i++) {
+            assertEquals("int", evaluator.eval("return o.f(1)").tojstring());
+            assertEquals("double", evaluator.eval("return o.f(2.5)").tojstring());
+            assertEquals("String", evaluator.eval("return o.f('12')").tojstring());
+        }
+    }
+
+    @Test
+    public void resolvesEachSignatureOnce() throws Exception {
+        Overloads overloads = new Overloads(Arrays.stream(Target.class.getMethods())
+                .filter(m->m.getName().equals("f")).collect(Collectors.toList()));
+        int[] misses = new int[1];
+        MetricsRecorder metrics = new MetricsRecorder() {
+            @Override
+            public void onOverloadMiss(Executable[] candidates) {
+                misses[0]++;
+            }
+        };
+        LuaValue[] ints = {LuaValue.valueOf(1)};
+        int first = overloads.resolve(ints, metrics);
+        assertEquals(first, overloads.resolve(new LuaValue[]{LuaValue.valueOf(7)}, metrics));
+        assertEquals(1, misses[0]);
+        assertNotEquals(first, overloads.resolve(new LuaValue[]{LuaValue.valueOf(1.5)}, metrics));
+        assertEquals(2, misses[0]);
+    }
+
+    @Test
+    public void noMatchIsALuaError() {
+        LuaEvaluator evaluator = evaluator();
+        try {
+            evaluator.eval("return o.g('x', 'y')");
+            fail("Call without a matching overload succeeded");
+        } catch(LuaError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("No matching method found"));
+        }
+    }
+
+    @Test
+    public void javaExceptionsBecomeLuaErrors() {
+        LuaEvaluator evaluator = evaluator();
+        assertFalse(evaluator.eval("return pcall(o.fail)").toboolean());
+    }
+
+    private static LuaEvaluator evaluator() {
+        LuaEvaluator evaluator = new LuaEvaluator();
+        evaluator.setObject("o", new Target());
+        return evaluator;
+    }
+
+    public static class Target {
+        public String f(int i) { return "int"; }
+        public String f(double d) { return "double"; }
+        public String f(String s) { return "String"; }
+        public String f(boolean b) { return "boolean"; }
+        public String f(char c) { return "char"; }
+        public String f(Object o) { return "Object"; }
+
+        public String g(int a, int b) { return "int,int"; }
+        public String g(int... a) { return "varargs " + a.length; }
+
+        public void fail() { throw new IllegalStateException(); }
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.natanbc.luaeval.utils;
+
+import com.github.natanbc.luaeval.LuaEvaluator;
+import org.junit.Test;
+import org.luaj.vm2.LuaValue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WrapperCacheTest {
+    @Test
+    public void reachableWrappersAreReused() {
+        AtomicInteger wraps = new AtomicInteger();
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCachedWrappers(true).build();
+        evaluator.addConversionHook((object, original)->wraps.incrementAndGet());
+        List<Object> list = new ArrayList<>();
+        LuaValue first = evaluator.toLua(list);
+        assertSame(first, evaluator.toLua(list));
+        assertEquals(1, wraps.get());
+        assertNotSame(first, evaluator.toLua(new ArrayList<>()));
+        assertEquals(2, wraps.get());
+    }
+
+    @Test
+    public void withoutCacheEveryConversionWraps() {
+        AtomicInteger wraps = new AtomicInteger();
+        LuaEvaluator evaluator = new LuaEvaluator();
+        evaluator.addConversionHook((object, original)->wraps.incrementAndGet());
+        List<Object> list = new ArrayList<>();
+        assertNotSame(evaluator.toLua(list), evaluator.toLua(list));
+        assertEquals(2, wraps.get());
+    }
+
+    @Test(timeout = 30000)
+    public void collectedWrappersAreCreatedAgain() throws InterruptedException {
+        AtomicInteger wraps = new AtomicInteger();
+        LuaEvaluator evaluator = LuaEvaluator.builder().setCachedWrappers(true).build();
+        evaluator.addConversionHook((object, original)->wraps.incrementAndGet());
+        List<Object> list = new ArrayList<>();
+        WeakReference<LuaValue> wrapper = new WeakReference<>(evaluator.toLua(list));
+        while(wrapper.get() != null) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        //the cache only deduplicates while the wrapper is reachable, the hooks see the object again
+        evaluator.toLua(list);
+        assertEquals(2, wraps.get());
+    }
+}